@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -24,6 +20,7 @@ import java.util.SortedSet;
  * <ul>
  * <li>interrupts are enabled, when they were previously disabled
  * <li>a MIPS instruction is executed
+ * <li>the kernel idles until the next interrupt (<tt>idle()</tt>)
  * </ul>
  * 
  * <p>
@@ -52,7 +49,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new InterruptQueue();
 	}
 
 	/**
@@ -119,16 +116,31 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Let the simulated time pass, as an idle processor would, until the next
+	 * pending interrupt is due. The skipped time is charged as kernel ticks,
+	 * and time stops one kernel tick short of the interrupt, so that the
+	 * interrupt is still delivered by the next tick and at the same time as if
+	 * interrupts had been enabled and disabled once per tick until then. Must
+	 * be called with interrupts disabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		long count = ticksUntilDue(true);
+		if (count > 0 && count != Long.MAX_VALUE)
+			tick(true, count);
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +163,34 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long ticksUntilDue(boolean inKernelMode) {
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		long tickLength = inKernelMode ? Stats.KernelTick : Stats.UserTick;
+
+		return (pending.firstTime() - privilege.stats.totalTicks - 1)
+				/ tickLength;
+	}
+
+	private void tick(boolean inKernelMode, long count) {
+		Lib.assertTrue(count >= 0 && count <= ticksUntilDue(inKernelMode));
+
+		Stats stats = privilege.stats;
+
+		if (inKernelMode) {
+			stats.kernelTicks += count * Stats.KernelTick;
+			stats.totalTicks += count * Stats.KernelTick;
+		}
+		else {
+			stats.userTicks += count * Stats.UserTick;
+			stats.totalTicks += count * Stats.UserTick;
+		}
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -162,24 +202,22 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.firstTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.firstTime() <= time) {
+			String type = pending.firstType();
+			Runnable handler = pending.firstHandler();
+			pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +228,22 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// empty a copy of the queue to list the interrupts in order
+		InterruptQueue toOccur = new InterruptQueue(pending);
+		while (!toOccur.isEmpty()) {
+			System.out.println("  " + toOccur.firstType() + ", scheduled at "
+					+ toOccur.firstTime());
+			toOccur.removeFirst();
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
-		long time;
-
-		String type;
-
-		Runnable handler;
-
-		private long id;
-	}
-
-	private long numPendingInterruptsCreated = 0;
-
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private InterruptQueue pending;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +255,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long ticksUntilDue(boolean inKernelMode) {
+			return Interrupt.this.ticksUntilDue(inKernelMode);
+		}
+
+		public void tick(boolean inKernelMode, long count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
 	}
 }
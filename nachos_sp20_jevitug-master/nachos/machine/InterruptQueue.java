@@ -0,0 +1,338 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * A priority queue of pending interrupts, used by <tt>Interrupt</tt>.
+ * Interrupts are ordered by the time they are due, and interrupts due at the
+ * same time are ordered by when they were scheduled.
+ *
+ * <p>
+ * The queue is a binary heap stored in parallel primitive arrays, so
+ * scheduling and invoking an interrupt allocates no objects once the arrays
+ * have grown to the largest number of interrupts pending at once.
+ */
+public final class InterruptQueue {
+	/**
+	 * Allocate a new, empty interrupt queue.
+	 */
+	InterruptQueue() {
+		times = new long[initialCapacity];
+		ids = new long[initialCapacity];
+		types = new String[initialCapacity];
+		handlers = new Runnable[initialCapacity];
+	}
+
+	/**
+	 * Allocate a new interrupt queue containing the same interrupts as
+	 * another.
+	 *
+	 * @param queue the queue to copy.
+	 */
+	InterruptQueue(InterruptQueue queue) {
+		times = queue.times.clone();
+		ids = queue.ids.clone();
+		types = queue.types.clone();
+		handlers = queue.handlers.clone();
+		size = queue.size;
+		numScheduled = queue.numScheduled;
+	}
+
+	/**
+	 * Add an interrupt to the queue.
+	 *
+	 * @param time the time the interrupt is due.
+	 * @param type a name for the type of interrupt.
+	 * @param handler the interrupt handler to call.
+	 */
+	void add(long time, String type, Runnable handler) {
+		if (size == times.length) {
+			int capacity = size * 2;
+			times = Arrays.copyOf(times, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+			types = Arrays.copyOf(types, capacity);
+			handlers = Arrays.copyOf(handlers, capacity);
+		}
+
+		long id = numScheduled++;
+
+		// sift the new interrupt up from the bottom of the heap
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, id, parent))
+				break;
+
+			move(parent, i);
+			i = parent;
+		}
+
+		set(i, time, id, type, handler);
+	}
+
+	/**
+	 * Test whether the queue is empty.
+	 *
+	 * @return <tt>true</tt> if no interrupts are pending.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the number of pending interrupts.
+	 *
+	 * @return the number of pending interrupts.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Return the time the first interrupt is due. The queue must not be empty.
+	 *
+	 * @return the time the first interrupt is due.
+	 */
+	long firstTime() {
+		Lib.assertTrue(size > 0);
+
+		return times[0];
+	}
+
+	/**
+	 * Return the type of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the type of the first interrupt.
+	 */
+	String firstType() {
+		Lib.assertTrue(size > 0);
+
+		return types[0];
+	}
+
+	/**
+	 * Return the handler of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the handler of the first interrupt.
+	 */
+	Runnable firstHandler() {
+		Lib.assertTrue(size > 0);
+
+		return handlers[0];
+	}
+
+	/**
+	 * Remove the first interrupt from the queue. The queue must not be empty.
+	 */
+	void removeFirst() {
+		Lib.assertTrue(size > 0);
+
+		int last = --size;
+
+		long time = times[last];
+		long id = ids[last];
+		String type = types[last];
+		Runnable handler = handlers[last];
+
+		// don't keep the removed handler reachable
+		types[last] = null;
+		handlers[last] = null;
+
+		if (last == 0)
+			return;
+
+		// sift the last interrupt down from the top of the heap
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+
+			if (child + 1 < size
+					&& before(times[child + 1], ids[child + 1], child))
+				child++;
+
+			if (!before(times[child], ids[child], time, id))
+				break;
+
+			move(child, i);
+			i = child;
+		}
+
+		set(i, time, id, type, handler);
+	}
+
+	/**
+	 * Test whether an interrupt due at <i>time</i>, scheduled as number
+	 * <i>id</i>, comes before the interrupt at the specified heap position.
+	 */
+	private boolean before(long time, long id, int position) {
+		return before(time, id, times[position], ids[position]);
+	}
+
+	private static boolean before(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
+
+	private void move(int from, int to) {
+		set(to, times[from], ids[from], types[from], handlers[from]);
+	}
+
+	private void set(int position, long time, long id, String type,
+			Runnable handler) {
+		times[position] = time;
+		ids[position] = id;
+		types[position] = type;
+		handlers[position] = handler;
+	}
+
+	/**
+	 * Compare the performance of this queue against the <tt>TreeSet</tt> of
+	 * <tt>PendingInterrupt</tt> objects it replaced, using a workload similar
+	 * to the devices: a fixed number of interrupts are kept pending, and each
+	 * interrupt that fires schedules another a random delay later. Also
+	 * checks that both queues invoke the interrupts in the same order.
+	 */
+	public static void selfTest() {
+		final int numPending = 64;
+		final int numEvents = 4000000;
+
+		for (int round = 0; round < 3; round++) {
+			long treeStart = System.nanoTime();
+			long treeChecksum = runTreeSet(numPending, numEvents);
+			long treeTime = System.nanoTime() - treeStart;
+
+			long heapStart = System.nanoTime();
+			long heapChecksum = runInterruptQueue(numPending, numEvents);
+			long heapTime = System.nanoTime() - heapStart;
+
+			Lib.assertTrue(treeChecksum == heapChecksum);
+
+			System.out.println("InterruptQueue: " + numEvents + " events, "
+					+ numPending + " pending: TreeSet " + treeTime / 1000000
+					+ " ms, InterruptQueue " + heapTime / 1000000 + " ms");
+		}
+	}
+
+	private static long runInterruptQueue(int numPending, int numEvents) {
+		Random random = new Random(numEvents);
+		final long[] fired = new long[1];
+		Runnable handler = new Runnable() {
+			public void run() {
+				fired[0]++;
+			}
+		};
+
+		InterruptQueue queue = new InterruptQueue();
+		long checksum = 0;
+
+		for (int i = 0; i < numPending; i++)
+			queue.add(1 + random.nextInt(1000), testTypes[random.nextInt(4)],
+					handler);
+
+		for (int i = 0; i < numEvents; i++) {
+			long time = queue.firstTime();
+			String type = queue.firstType();
+			Runnable next = queue.firstHandler();
+			queue.removeFirst();
+			next.run();
+
+			checksum = (checksum * 31 + time) * 31 + type.hashCode();
+			queue.add(time + 1 + random.nextInt(1000),
+					testTypes[random.nextInt(4)], handler);
+		}
+
+		return checksum + fired[0];
+	}
+
+	private static long runTreeSet(int numPending, int numEvents) {
+		Random random = new Random(numEvents);
+		final long[] fired = new long[1];
+		Runnable handler = new Runnable() {
+			public void run() {
+				fired[0]++;
+			}
+		};
+
+		TreeSet<PendingInterrupt> queue = new TreeSet<PendingInterrupt>();
+		long numCreated = 0;
+		long checksum = 0;
+
+		for (int i = 0; i < numPending; i++)
+			queue.add(new PendingInterrupt(1 + random.nextInt(1000),
+					testTypes[random.nextInt(4)], handler, numCreated++));
+
+		for (int i = 0; i < numEvents; i++) {
+			PendingInterrupt next = queue.first();
+			queue.remove(next);
+			next.handler.run();
+
+			checksum = (checksum * 31 + next.time) * 31 + next.type.hashCode();
+			queue.add(new PendingInterrupt(next.time + 1
+					+ random.nextInt(1000), testTypes[random.nextInt(4)],
+					handler, numCreated++));
+		}
+
+		return checksum + fired[0];
+	}
+
+	/** The pending interrupt representation used before this class. */
+	private static class PendingInterrupt implements
+			Comparable<PendingInterrupt> {
+		PendingInterrupt(long time, String type, Runnable handler, long id) {
+			this.time = time;
+			this.type = type;
+			this.handler = handler;
+			this.id = id;
+		}
+
+		public int compareTo(PendingInterrupt toOccur) {
+			// can't return 0 for unequal objects, so check all fields
+			if (time < toOccur.time)
+				return -1;
+			else if (time > toOccur.time)
+				return 1;
+			else if (id < toOccur.id)
+				return -1;
+			else if (id > toOccur.id)
+				return 1;
+			else
+				return 0;
+		}
+
+		long time;
+
+		String type;
+
+		Runnable handler;
+
+		private long id;
+	}
+
+	private static final int initialCapacity = 16;
+
+	private static final String[] testTypes = { "timer", "console read",
+			"console write", "network recv" };
+
+	/** The number of interrupts in the heap. */
+	private int size = 0;
+
+	/** The number of interrupts ever added, used to order equal times. */
+	private long numScheduled = 0;
+
+	/** The time each interrupt in the heap is due. */
+	private long[] times;
+
+	/** The order in which each interrupt in the heap was scheduled. */
+	private long[] ids;
+
+	/** The type of each interrupt in the heap. */
+	private String[] types;
+
+	/** The handler of each interrupt in the heap. */
+	private Runnable[] handlers;
+}
@@ -378,6 +378,50 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Count pages the kernel has read from COFF files, which the hardware
+	 * cannot see.
+	 * 
+	 * @param pages the number of pages read.
+	 */
+	public static void countCOFFReads(int pages) {
+		Lib.assertTrue(pages >= 0);
+		stats.numCOFFReads += pages;
+	}
+
+	/**
+	 * Count pages the kernel has read from swap.
+	 * 
+	 * @param pages the number of pages read.
+	 */
+	public static void countSwapReads(int pages) {
+		Lib.assertTrue(pages >= 0);
+		stats.numSwapReads += pages;
+	}
+
+	/**
+	 * Count pages the kernel has written to swap.
+	 * 
+	 * @param pages the number of pages written.
+	 */
+	public static void countSwapWrites(int pages) {
+		Lib.assertTrue(pages >= 0);
+		stats.numSwapWrites += pages;
+	}
+
+	/**
+	 * Record how long the kernel took to bring in a page for a page fault.
+	 * 
+	 * @param ticks the simulated time the fault took to service.
+	 */
+	public static void recordFaultService(long ticks) {
+		Lib.assertTrue(ticks >= 0);
+		stats.numFaultsServiced++;
+		stats.faultServiceTicks += ticks;
+		stats.maxFaultServiceTicks = Math.max(stats.maxFaultServiceTicks,
+				ticks);
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
@@ -5,6 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
@@ -57,6 +58,22 @@ import java.net.SocketException;
  * network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ * 
+ * <p>
+ * The <tt>NetworkLink.medium</tt> key in <tt>nachos.conf</tt> selects what
+ * the link is attached to:
+ * <ul>
+ * <li><tt>udp</tt> (the default) sends each packet as a UDP datagram to the
+ * Nachos machine, in this JVM or another one on this host, that has the
+ * destination link address.
+ * <li><tt>loopback</tt> attaches the link to a switch inside this JVM, at
+ * link address <tt>NetworkLink.linkAddress</tt> (0 by default). More
+ * machines join the same switch with <tt>attachLink()</tt>. A packet arrives
+ * at the link with its destination address <tt>NetworkLink.latency</tt>
+ * ticks after it is sent (0 by default), and is lost if no link has that
+ * address. No socket or Java thread is used, so a loopback network behaves
+ * the same way every time it is run with the same random seed.
+ * </ul>
  */
 public class NetworkLink {
 	/**
@@ -65,7 +82,11 @@ public class NetworkLink {
 	 * <p>
 	 * <tt>nachos.conf</tt> specifies the reliability of the network. The
 	 * reliability, between 0 and 1, is the probability that any particular
-	 * packet will not get dropped by the network.
+	 * packet will not get dropped by the network. It also specifies the number
+	 * of packets the link can hold waiting to be sent, including the one being
+	 * sent (<tt>NetworkLink.transmitSlots</tt>, 8 by default), and the number
+	 * of packets it can hold after they are received until they are read
+	 * (<tt>NetworkLink.receiveSlots</tt>, 16 by default).
 	 * 
 	 * @param privilege encapsulates privileged access to the Nachos machine.
 	 */
@@ -73,7 +94,101 @@ public class NetworkLink {
 		System.out.print(" network");
 
 		this.privilege = privilege;
+		configure();
+
+		String medium = Config.getString("NetworkLink.medium", "udp");
+		if (medium.equals("loopback"))
+			openLoopback(Config.getInteger("NetworkLink.linkAddress", 0));
+		else if (medium.equals("udp"))
+			openSocket();
+		else
+			Lib.assertNotReached("unknown NetworkLink.medium: " + medium);
+
+		System.out.print("(" + linkAddress + ")");
+
+		start();
+	}
+
+	/**
+	 * Allocate a new network link attached to the loopback switch at the
+	 * specified link address.
+	 */
+	private NetworkLink(Privilege privilege, int address) {
+		this.privilege = privilege;
+		configure();
+		openLoopback(address);
+		start();
+	}
+
+	/**
+	 * Attach another network link to the switch this loopback link is attached
+	 * to, as if another machine had joined the network. The new link takes the
+	 * lowest link address that no link in this JVM has, and stays attached for
+	 * as long as the JVM runs.
+	 * 
+	 * @return the new link, or <tt>null</tt> if every link address is taken.
+	 */
+	public NetworkLink attachLink() {
+		Lib.assertTrue(socket == null);
+
+		for (int address = 0; address < Packet.linkAddressLimit; address++) {
+			if (switchPorts[address] == null)
+				return new NetworkLink(privilege, address);
+		}
+
+		return null;
+	}
+
+	private void configure() {
+		reliability = Config.getDouble("NetworkLink.reliability");
+		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+
+		outgoingPackets = new Packet[Config.getInteger(
+				"NetworkLink.transmitSlots", 8)];
+		Lib.assertTrue(outgoingPackets.length > 0);
+
+		incomingPackets = new Packet[Config.getInteger(
+				"NetworkLink.receiveSlots", 16)];
+		Lib.assertTrue(incomingPackets.length > 0);
+	}
+
+	private void start() {
+		receiveInterrupt = new Runnable() {
+			public void run() {
+				receiveInterrupt();
+			}
+		};
 
+		sendInterrupt = new Runnable() {
+			public void run() {
+				sendInterrupt();
+			}
+		};
+
+		scheduleReceiveInterrupt();
+
+		if (socket != null) {
+			Thread receiveThread = new Thread(new Runnable() {
+				public void run() {
+					receiveLoop();
+				}
+			});
+
+			receiveThread.start();
+		}
+	}
+
+	private void openLoopback(int address) {
+		Lib.assertTrue(address >= 0 && address < Packet.linkAddressLimit
+				&& switchPorts[address] == null);
+		linkAddress = (byte) address;
+		switchPorts[address] = this;
+
+		latency = Config.getInteger("NetworkLink.latency", 0);
+		Lib.assertTrue(latency >= 0);
+	}
+
+	private void openSocket() {
 		try {
 			localHost = InetAddress.getLocalHost();
 		}
@@ -83,9 +198,6 @@ public class NetworkLink {
 
 		Lib.assertTrue(localHost != null);
 
-		reliability = Config.getDouble("NetworkLink.reliability");
-		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
-
 		socket = null;
 
 		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
@@ -102,30 +214,6 @@ public class NetworkLink {
 			System.out.println("Unable to acquire a link address!");
 			Lib.assertNotReached();
 		}
-
-		System.out.print("(" + linkAddress + ")");
-
-		receiveInterrupt = new Runnable() {
-			public void run() {
-				receiveInterrupt();
-			}
-		};
-
-		sendInterrupt = new Runnable() {
-			public void run() {
-				sendInterrupt();
-			}
-		};
-
-		scheduleReceiveInterrupt();
-
-		Thread receiveThread = new Thread(new Runnable() {
-			public void run() {
-				receiveLoop();
-			}
-		});
-
-		receiveThread.start();
 	}
 
 	/**
@@ -137,17 +225,29 @@ public class NetworkLink {
 		return linkAddress;
 	}
 
+	/**
+	 * Returns the number of packets this link can hold waiting to be sent,
+	 * including the one being sent.
+	 * 
+	 * @return the number of transmit slots.
+	 */
+	public int getTransmitSlots() {
+		return outgoingPackets.length;
+	}
+
 	/**
 	 * Set this link's receive and send interrupt handlers.
 	 * 
 	 * <p>
-	 * The receive interrupt handler is called every time a packet arrives and
-	 * can be read using <tt>receive()</tt>.
+	 * The receive interrupt handler is called when one or more packets have
+	 * arrived. Every packet received can be read using <tt>receive()</tt>,
+	 * which returns <tt>null</tt> once none are left. Packets that arrive
+	 * while every receive slot is full wait for a slot to free up.
 	 * 
 	 * <p>
 	 * The send interrupt handler is called every time a packet sent with
-	 * <tt>send()</tt> is finished being sent. This means that another packet
-	 * can be sent.
+	 * <tt>send()</tt> is finished being sent. This means that a transmit slot
+	 * is free, and another packet can be sent.
 	 * 
 	 * @param receiveInterruptHandler the callback to call when a packet
 	 * arrives.
@@ -166,30 +266,34 @@ public class NetworkLink {
 	}
 
 	private synchronized void receiveInterrupt() {
-		Lib.assertTrue(incomingPacket == null);
+		boolean arrived = false;
+
+		// take every packet that has arrived since the last interrupt, as far
+		// as the receive slots allow, and raise a single interrupt for them
+		while (numIncoming < incomingPackets.length && !arrivals.isEmpty()) {
+			byte[] packetBytes = arrivals.removeFirst();
 
-		if (incomingBytes != null) {
 			if (Machine.autoGrader().canReceivePacket(privilege)) {
 				try {
-					incomingPacket = new Packet(incomingBytes);
+					int slot = (firstIncoming + numIncoming)
+							% incomingPackets.length;
+					incomingPackets[slot] = new Packet(packetBytes);
+					numIncoming++;
 
 					privilege.stats.numPacketsReceived++;
+					arrived = true;
 				}
 				catch (MalformedPacketException e) {
 				}
 			}
+		}
 
-			incomingBytes = null;
-			notify();
+		notify();
 
-			if (incomingPacket == null)
-				scheduleReceiveInterrupt();
-			else if (receiveInterruptHandler != null)
-				receiveInterruptHandler.run();
-		}
-		else {
-			scheduleReceiveInterrupt();
-		}
+		scheduleReceiveInterrupt();
+
+		if (arrived && receiveInterruptHandler != null)
+			receiveInterruptHandler.run();
 	}
 
 	/**
@@ -198,13 +302,14 @@ public class NetworkLink {
 	 * @return the next packet received, or <tt>null</tt> if no packet is
 	 * available.
 	 */
-	public Packet receive() {
-		Packet p = incomingPacket;
+	public synchronized Packet receive() {
+		if (numIncoming == 0)
+			return null;
 
-		if (incomingPacket != null) {
-			incomingPacket = null;
-			scheduleReceiveInterrupt();
-		}
+		Packet p = incomingPackets[firstIncoming];
+		incomingPackets[firstIncoming] = null;
+		firstIncoming = (firstIncoming + 1) % incomingPackets.length;
+		numIncoming--;
 
 		return p;
 	}
@@ -212,7 +317,7 @@ public class NetworkLink {
 	private void receiveLoop() {
 		while (true) {
 			synchronized (this) {
-				while (incomingBytes != null) {
+				while (arrivals.size() >= incomingPackets.length) {
 					try {
 						wait();
 					}
@@ -238,19 +343,30 @@ public class NetworkLink {
 				return;
 			}
 
-			synchronized (this) {
-				incomingBytes = packetBytes;
-			}
+			arrive(packetBytes);
 		}
 	}
 
+	/**
+	 * Add a packet that has arrived to the packets waiting for the next
+	 * receive interrupt.
+	 */
+	private synchronized void arrive(byte[] packetBytes) {
+		arrivals.add(packetBytes);
+	}
+
 	private void scheduleSendInterrupt() {
 		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
 				sendInterrupt);
 	}
 
 	private void sendInterrupt() {
-		Lib.assertTrue(outgoingPacket != null);
+		Lib.assertTrue(numOutgoing > 0);
+
+		final Packet p = outgoingPackets[firstOutgoing];
+		outgoingPackets[firstOutgoing] = null;
+		firstOutgoing = (firstOutgoing + 1) % outgoingPackets.length;
+		numOutgoing--;
 
 		// randomly drop packets, according to its reliability
 		if (Machine.autoGrader().canSendPacket(privilege)
@@ -258,21 +374,28 @@ public class NetworkLink {
 			// ok, no drop
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					sendPacket();
+					sendPacket(p);
 				}
 			});
 		}
-		else {
-			outgoingPacket = null;
-		}
+
+		// the packets queued behind it go out one at a time
+		if (numOutgoing > 0)
+			scheduleSendInterrupt();
 
 		if (sendInterruptHandler != null)
 			sendInterruptHandler.run();
 	}
 
-	private void sendPacket() {
-		Packet p = outgoingPacket;
-		outgoingPacket = null;
+	private void sendPacket(Packet p) {
+		if (socket == null) {
+			NetworkLink destination = switchPorts[p.dstLink];
+			if (destination != null)
+				destination.switchArrival(p.packetBytes.clone());
+
+			privilege.stats.numPacketsSent++;
+			return;
+		}
 
 		try {
 			socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
@@ -285,16 +408,38 @@ public class NetworkLink {
 	}
 
 	/**
-	 * Send another packet. If a packet is already being sent, the result is not
-	 * defined.
+	 * Deliver a packet sent through the loopback switch to this link, once
+	 * the latency has passed.
+	 */
+	private void switchArrival(final byte[] packetBytes) {
+		if (latency == 0) {
+			arrive(packetBytes);
+			return;
+		}
+
+		privilege.interrupt.schedule(latency, "network arrival",
+				new Runnable() {
+					public void run() {
+						arrive(packetBytes);
+					}
+				});
+	}
+
+	/**
+	 * Send another packet, after the packets already waiting to be sent. If
+	 * every transmit slot is in use, the result is not defined.
 	 * 
 	 * @param pkt the packet to send.
 	 */
 	public void send(Packet pkt) {
-		if (outgoingPacket == null)
+		Lib.assertTrue(numOutgoing < outgoingPackets.length);
+
+		if (numOutgoing == 0)
 			scheduleSendInterrupt();
 
-		outgoingPacket = pkt;
+		int slot = (firstOutgoing + numOutgoing) % outgoingPackets.length;
+		outgoingPackets[slot] = pkt;
+		numOutgoing++;
 	}
 
 	private static final int hash;
@@ -315,6 +460,13 @@ public class NetworkLink {
 		networkID = (byte) (hash / 0x4E41);
 	}
 
+	/**
+	 * The loopback switch: the link in this JVM with each link address, or
+	 * <tt>null</tt>. Only used by Nachos threads, which run one at a time.
+	 */
+	private static NetworkLink[] switchPorts =
+			new NetworkLink[Packet.linkAddressLimit];
+
 	private Privilege privilege;
 
 	private Runnable receiveInterrupt;
@@ -333,11 +485,21 @@ public class NetworkLink {
 
 	private double reliability;
 
-	private byte[] incomingBytes = null;
+	/**
+	 * Packets that have arrived, in order, waiting for the next receive
+	 * interrupt to move them to <tt>incomingPackets</tt>.
+	 */
+	private ArrayDeque<byte[]> arrivals = new ArrayDeque<byte[]>();
+
+	private long latency;
+
+	/** The packets received, starting at <tt>firstIncoming</tt>. */
+	private Packet[] incomingPackets;
 
-	private Packet incomingPacket = null;
+	private int firstIncoming = 0, numIncoming = 0;
 
-	private Packet outgoingPacket = null;
+	/** The packets waiting to be sent, starting at <tt>firstOutgoing</tt>. */
+	private Packet[] outgoingPackets;
 
-	private boolean sendBusy = false;
+	private int firstOutgoing = 0, numOutgoing = 0;
 }
@@ -0,0 +1,550 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. All access to main
+ * memory, by the processor and by the kernel, goes through this class, so
+ * that memory can be stored in one of several backends, selected by the
+ * <tt>Processor.memory</tt> key in <tt>nachos.conf</tt>:
+ *
+ * <ul>
+ * <li><tt>array</tt> (the default) stores memory in a <tt>byte[]</tt> on the
+ * Java heap.
+ * <li><tt>direct</tt> stores memory in a direct <tt>ByteBuffer</tt>, outside
+ * the Java heap, so that large machines are not limited by the heap size and
+ * do not add to garbage collection work.
+ * <li><tt>mapped</tt> maps memory from the file named by
+ * <tt>Processor.memoryFile</tt> (<tt>nachos.mem</tt> by default). The file is
+ * cleared when the machine starts, and always holds the current contents of
+ * memory, so it can be inspected or copied as a snapshot of a running
+ * machine.
+ * </ul>
+ *
+ * <p>
+ * Multi-byte values are little-endian, and values narrower than an int are
+ * sign-extended when read, like the rest of the machine.
+ */
+public abstract class PhysicalMemory {
+	/**
+	 * Allocate a new physical memory of the specified size.
+	 *
+	 * @param size the number of bytes of memory.
+	 */
+	PhysicalMemory(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Allocate physical memory of the specified size, using the backend
+	 * selected by <tt>Processor.memory</tt>.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param size the number of bytes of memory.
+	 * @return the new memory, cleared to zero.
+	 */
+	static PhysicalMemory create(Privilege privilege, final int size) {
+		String backend = Config.getString("Processor.memory", "array");
+
+		if (backend.equals("array"))
+			return new ArrayMemory(size);
+
+		if (backend.equals("direct"))
+			return new BufferMemory(size, ByteBuffer.allocateDirect(size));
+
+		if (backend.equals("mapped")) {
+			final File file = new File(Config.getString(
+					"Processor.memoryFile", "nachos.mem"));
+			final ByteBuffer[] mapped = new ByteBuffer[1];
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					mapped[0] = mapFile(file, size);
+				}
+			});
+
+			Lib.assertTrue(mapped[0] != null, "unable to map " + file);
+
+			return new BufferMemory(size, mapped[0]);
+		}
+
+		Lib.assertNotReached("unknown Processor.memory: " + backend);
+		return null;
+	}
+
+	private static ByteBuffer mapFile(File file, int size) {
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				// truncate first, so the whole file reads as zero
+				f.setLength(0);
+				f.setLength(size);
+
+				// the mapping stays valid after the file is closed
+				return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						size);
+			}
+			finally {
+				f.close();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return the size of this memory.
+	 *
+	 * @return the number of bytes of memory.
+	 */
+	public final int getSize() {
+		return size;
+	}
+
+	/**
+	 * Read a sign-extended byte.
+	 *
+	 * @param paddr the physical address to read.
+	 * @return the value read.
+	 */
+	public abstract int readByte(int paddr);
+
+	/**
+	 * Read a sign-extended, little-endian halfword.
+	 *
+	 * @param paddr the physical address to read.
+	 * @return the value read.
+	 */
+	public abstract int readShort(int paddr);
+
+	/**
+	 * Read a little-endian word.
+	 *
+	 * @param paddr the physical address to read.
+	 * @return the value read.
+	 */
+	public abstract int readInt(int paddr);
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes, sign-extended.
+	 *
+	 * @param paddr the physical address to read.
+	 * @param size the number of bytes to read.
+	 * @return the value read.
+	 */
+	public int read(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return readByte(paddr);
+		case 2:
+			return readShort(paddr);
+		case 4:
+			return readInt(paddr);
+		default:
+			Lib.assertNotReached();
+			return -1;
+		}
+	}
+
+	/**
+	 * Write a byte.
+	 *
+	 * @param paddr the physical address to write.
+	 * @param value the value to store. Only the low byte is stored.
+	 */
+	public abstract void writeByte(int paddr, int value);
+
+	/**
+	 * Write a little-endian halfword.
+	 *
+	 * @param paddr the physical address to write.
+	 * @param value the value to store. Only the low halfword is stored.
+	 */
+	public abstract void writeShort(int paddr, int value);
+
+	/**
+	 * Write a little-endian word.
+	 *
+	 * @param paddr the physical address to write.
+	 * @param value the value to store.
+	 */
+	public abstract void writeInt(int paddr, int value);
+
+	/**
+	 * Write <i>size</i> (1, 2, or 4) bytes.
+	 *
+	 * @param paddr the physical address to write.
+	 * @param size the number of bytes to write.
+	 * @param value the value to store.
+	 */
+	public void write(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			writeByte(paddr, value);
+			break;
+		case 2:
+			writeShort(paddr, value);
+			break;
+		case 4:
+			writeInt(paddr, value);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+	}
+
+	/**
+	 * Copy bytes from this memory into an array.
+	 *
+	 * @param paddr the first physical address to copy.
+	 * @param data the array to copy into.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public abstract void read(int paddr, byte[] data, int offset, int length);
+
+	/**
+	 * Copy bytes from an array into this memory.
+	 *
+	 * @param paddr the first physical address to write.
+	 * @param data the array to copy from.
+	 * @param offset the first byte to read in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public abstract void write(int paddr, byte[] data, int offset, int length);
+
+	/**
+	 * Set a range of this memory to a single value.
+	 *
+	 * @param paddr the first physical address to set.
+	 * @param length the number of bytes to set.
+	 * @param value the value to store in each byte.
+	 */
+	public abstract void fill(int paddr, int length, byte value);
+
+	/**
+	 * Read bytes from a file directly into this memory, failing if the whole
+	 * range cannot be read. See <tt>Lib.strictReadFile()</tt>.
+	 *
+	 * @param file the file to read.
+	 * @param position the first byte of the file to read.
+	 * @param paddr the first physical address to write.
+	 * @param length the number of bytes to read.
+	 */
+	public abstract void strictReadFile(OpenFile file, int position,
+			int paddr, int length);
+
+	/**
+	 * Read bytes from the current position of a file into this memory, as
+	 * <tt>OpenFile.read()</tt> would read them into an array. Memory stored in
+	 * an array is read into directly.
+	 *
+	 * @param file the file to read.
+	 * @param paddr the first physical address to write.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, or -1 on failure.
+	 */
+	public int readFile(OpenFile file, int paddr, int length) {
+		byte[] data = new byte[length];
+		int amount = file.read(data, 0, length);
+		if (amount > 0)
+			write(paddr, data, 0, amount);
+		return amount;
+	}
+
+	/**
+	 * Write bytes from this memory at the current position of a file, as
+	 * <tt>OpenFile.write()</tt> would write them from an array. Memory stored
+	 * in an array is written from directly.
+	 *
+	 * @param file the file to write.
+	 * @param paddr the first physical address to read.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written, or -1 on failure.
+	 */
+	public int writeFile(OpenFile file, int paddr, int length) {
+		byte[] data = new byte[length];
+		read(paddr, data, 0, length);
+		return file.write(data, 0, length);
+	}
+
+	/**
+	 * Return the array holding this memory, if it is stored in one.
+	 *
+	 * @return the backing array, or <tt>null</tt> if this memory is not
+	 * stored on the Java heap.
+	 */
+	byte[] array() {
+		return null;
+	}
+
+	/**
+	 * Compare the speed of the backend selected by <tt>Processor.memory</tt>
+	 * against byte-at-a-time access with <tt>Lib.bytesToInt()</tt> and
+	 * <tt>Lib.bytesFromInt()</tt>, which the processor used before this class;
+	 * mapped memory is measured as a direct buffer. The workloads are the
+	 * loops of <tt>memcpy()</tt> and <tt>memset()</tt> from <tt>test/</tt>,
+	 * run both a byte at a time, as compiled, and a word at a time, as in
+	 * programs that copy <tt>int</tt> arrays. Also checks that both end up
+	 * with the same contents.
+	 */
+	public static void selfTest() {
+		final int size = 1 << 20;
+
+		String backend = Config.getString("Processor.memory", "array");
+
+		LibMemory lib = new LibMemory(size);
+		PhysicalMemory memory;
+		if (backend.equals("array"))
+			memory = new ArrayMemory(size);
+		else
+			memory = new BufferMemory(size, ByteBuffer.allocateDirect(size));
+
+		for (int round = 0; round < 5; round++) {
+			for (int wordSize = 1; wordSize <= 4; wordSize *= 4) {
+				long libTime = runCopy(lib, wordSize);
+				long time = runCopy(memory, wordSize);
+
+				Lib.assertTrue(checksum(memory) == checksum(lib));
+
+				System.out.println("PhysicalMemory: " + wordSize
+						+ "-byte memset/memcpy: Lib " + libTime / 1000000
+						+ " ms, " + backend + " " + time / 1000000 + " ms");
+			}
+		}
+	}
+
+	/*
+	 * Fill the first half of memory with memset(), then copy it to the second
+	 * half with memcpy(), a few times over, accessing memory the way
+	 * Processor.readMem() and writeMem() do, and return the time taken in
+	 * nanoseconds. Only two backends are ever passed in one run, so that the
+	 * calls can still be inlined, as they are in the processor.
+	 */
+	private static long runCopy(PhysicalMemory memory, int wordSize) {
+		long startTime = System.nanoTime();
+		int half = memory.getSize() / 2;
+
+		for (int pass = 0; pass < numPasses; pass++) {
+			for (int i = 0; i < half; i += wordSize)
+				memory.write(i, wordSize, pass * 0x01010101 + i);
+
+			for (int i = 0; i < half; i += wordSize)
+				memory.write(half + i, wordSize, memory.read(i, wordSize));
+		}
+
+		return System.nanoTime() - startTime;
+	}
+
+	private static long checksum(PhysicalMemory memory) {
+		long checksum = 0;
+		for (int i = 0; i < memory.getSize(); i += 4)
+			checksum = checksum * 31 + memory.readInt(i);
+
+		return checksum;
+	}
+
+	private static final int numPasses = 32;
+
+	/** The number of bytes of memory. */
+	private final int size;
+
+	/**
+	 * Memory stored in a <tt>byte[]</tt>, accessed a byte at a time with
+	 * <tt>Lib</tt>. Only used by <tt>selfTest()</tt> for comparison.
+	 */
+	private static final class LibMemory extends PhysicalMemory {
+		LibMemory(int size) {
+			super(size);
+
+			bytes = new byte[size];
+		}
+
+		public int readByte(int paddr) {
+			return bytes[paddr];
+		}
+
+		public int readShort(int paddr) {
+			return Lib.bytesToShort(bytes, paddr);
+		}
+
+		public int readInt(int paddr) {
+			return Lib.bytesToInt(bytes, paddr);
+		}
+
+		public void writeByte(int paddr, int value) {
+			bytes[paddr] = (byte) value;
+		}
+
+		public void writeShort(int paddr, int value) {
+			Lib.bytesFromShort(bytes, paddr, (short) value);
+		}
+
+		public void writeInt(int paddr, int value) {
+			Lib.bytesFromInt(bytes, paddr, value);
+		}
+
+		public void read(int paddr, byte[] data, int offset, int length) {
+			System.arraycopy(bytes, paddr, data, offset, length);
+		}
+
+		public void write(int paddr, byte[] data, int offset, int length) {
+			System.arraycopy(data, offset, bytes, paddr, length);
+		}
+
+		public void fill(int paddr, int length, byte value) {
+			Arrays.fill(bytes, paddr, paddr + length, value);
+		}
+
+		public void strictReadFile(OpenFile file, int position, int paddr,
+				int length) {
+			Lib.strictReadFile(file, position, bytes, paddr, length);
+		}
+
+		private final byte[] bytes;
+	}
+
+	/** Memory stored in a <tt>byte[]</tt> on the Java heap. */
+	private static final class ArrayMemory extends PhysicalMemory {
+		ArrayMemory(int size) {
+			super(size);
+
+			bytes = new byte[size];
+		}
+
+		public int readByte(int paddr) {
+			return bytes[paddr];
+		}
+
+		public int readShort(int paddr) {
+			return (short) shortView.get(bytes, paddr);
+		}
+
+		public int readInt(int paddr) {
+			return (int) intView.get(bytes, paddr);
+		}
+
+		public void writeByte(int paddr, int value) {
+			bytes[paddr] = (byte) value;
+		}
+
+		public void writeShort(int paddr, int value) {
+			shortView.set(bytes, paddr, (short) value);
+		}
+
+		public void writeInt(int paddr, int value) {
+			intView.set(bytes, paddr, value);
+		}
+
+		public void read(int paddr, byte[] data, int offset, int length) {
+			System.arraycopy(bytes, paddr, data, offset, length);
+		}
+
+		public void write(int paddr, byte[] data, int offset, int length) {
+			System.arraycopy(data, offset, bytes, paddr, length);
+		}
+
+		public void fill(int paddr, int length, byte value) {
+			Arrays.fill(bytes, paddr, paddr + length, value);
+		}
+
+		public void strictReadFile(OpenFile file, int position, int paddr,
+				int length) {
+			Lib.strictReadFile(file, position, bytes, paddr, length);
+		}
+
+		public int readFile(OpenFile file, int paddr, int length) {
+			return file.read(bytes, paddr, length);
+		}
+
+		public int writeFile(OpenFile file, int paddr, int length) {
+			return file.write(bytes, paddr, length);
+		}
+
+		byte[] array() {
+			return bytes;
+		}
+
+		private final byte[] bytes;
+
+		/**
+		 * Little-endian views of <tt>bytes</tt>, so that halfwords and words
+		 * are accessed with a single load or store.
+		 */
+		private static final VarHandle shortView = MethodHandles
+				.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+		private static final VarHandle intView = MethodHandles
+				.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Memory stored in a direct or mapped <tt>ByteBuffer</tt>. */
+	private static final class BufferMemory extends PhysicalMemory {
+		BufferMemory(int size, ByteBuffer buffer) {
+			super(size);
+
+			Lib.assertTrue(buffer.capacity() == size);
+
+			this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		public int readByte(int paddr) {
+			return buffer.get(paddr);
+		}
+
+		public int readShort(int paddr) {
+			return buffer.getShort(paddr);
+		}
+
+		public int readInt(int paddr) {
+			return buffer.getInt(paddr);
+		}
+
+		public void writeByte(int paddr, int value) {
+			buffer.put(paddr, (byte) value);
+		}
+
+		public void writeShort(int paddr, int value) {
+			buffer.putShort(paddr, (short) value);
+		}
+
+		public void writeInt(int paddr, int value) {
+			buffer.putInt(paddr, value);
+		}
+
+		public void read(int paddr, byte[] data, int offset, int length) {
+			buffer.get(paddr, data, offset, length);
+		}
+
+		public void write(int paddr, byte[] data, int offset, int length) {
+			buffer.put(paddr, data, offset, length);
+		}
+
+		public void fill(int paddr, int length, byte value) {
+			for (int i = 0; i < length; i++)
+				buffer.put(paddr + i, value);
+		}
+
+		public void strictReadFile(OpenFile file, int position, int paddr,
+				int length) {
+			byte[] data = new byte[length];
+			Lib.strictReadFile(file, position, data, 0, length);
+			buffer.put(paddr, data, 0, length);
+		}
+
+		private final ByteBuffer buffer;
+	}
+}
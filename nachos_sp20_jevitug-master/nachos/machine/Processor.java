@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,17 +42,41 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+				tlbSize);
+		Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+				&& tlbSize % tlbAssociativity == 0,
+				"Processor.tlbSize must be a multiple of Processor.tlbAssociativity");
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		memory = PhysicalMemory.create(privilege, pageSize * numPhysPages);
+
+		decodedPages = new DecodedPage[numPhysPages];
+
+		String engineName = Config.getString("Processor.engine", "block");
+		if (engineName.equals("classic"))
+			engine = engineClassic;
+		else if (engineName.equals("predecoded"))
+			engine = enginePredecoded;
+		else if (engineName.equals("block"))
+			engine = engineBlock;
+		else
+			Lib.assertNotReached("unknown Processor.engine: " + engineName);
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			hostVPNs = new int[hostCacheSize];
+			hostFrames = new int[hostCacheSize];
+			hostSlots = new int[hostCacheSize];
+			Arrays.fill(hostVPNs, -1);
 		}
 		else {
 			translations = null;
@@ -93,11 +119,45 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// only the classic interpreter produces disassembly and tracing output
+		int engine = this.engine;
+		if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble))
+			engine = engineClassic;
+
+		/*
+		 * Instructions that cannot make an interrupt due are charged in one
+		 * batch before the next instruction that can, which is then followed
+		 * by an ordinary tick. Since interrupt handlers and the kernel only
+		 * run during that tick or while handling an exception, this is
+		 * indistinguishable from ticking after every instruction.
+		 */
 		while (true) {
 			try {
-				inst.run();
+				switch (engine) {
+				case engineBlock:
+					runBlocks(inst);
+					break;
+				case enginePredecoded:
+					for (long batch = userTicksUntilDue(); batch > 0; batch--) {
+						runDecoded(inst);
+						unchargedTicks++;
+					}
+					chargeTicks();
+					runDecoded(inst);
+					break;
+				default:
+					for (long batch = userTicksUntilDue(); batch > 0; batch--) {
+						inst.run();
+						unchargedTicks++;
+					}
+					chargeTicks();
+					inst.run();
+					break;
+				}
 			}
 			catch (MipsException e) {
+				chargeTicks();
 				e.handle();
 			}
 
@@ -188,6 +248,66 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. A
+	 * virtual page can only be translated by an entry in its own set (see
+	 * <tt>getTLBSet()</tt>). If this is equal to <tt>getTLBSize()</tt>, the TLB
+	 * is fully associative.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Return the TLB set that may hold the translation for a virtual page. The
+	 * entries of set <i>s</i> are numbered <tt><i>s</i> *
+	 * getTLBAssociativity()</tt> through <tt>(<i>s</i> + 1) *
+	 * getTLBAssociativity() - 1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set for <tt>vpn</tt>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		Lib.assertTrue(vpn >= 0 && vpn < maxPages);
+
+		return vpn % (tlbSize / tlbAssociativity);
+	}
+
+	/**
+	 * Set the current address space identifier. From now on, only TLB entries
+	 * whose <tt>asid</tt> is equal to <i>asid</i> are used for translation, so
+	 * the TLB can hold the translations of several address spaces at once and
+	 * need not be flushed on a context switch.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		if (asid != currentASID) {
+			currentASID = asid;
+			Arrays.fill(hostVPNs, -1);
+		}
+	}
+
+	/**
+	 * Return the current address space identifier, set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return currentASID;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +325,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * If the TLB is fully associative, the location of an entry within the
+	 * TLB does not affect anything. Otherwise, the entry is only used if it is
+	 * in the set for its virtual page number (see <tt>getTLBSet()</tt>).
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -215,6 +336,10 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		// the replaced entry and the new one may both change a cached lookup
+		invalidateHostTranslation(translations[number].vpn);
+		invalidateHostTranslation(entry.vpn);
+
 		translations[number] = new TranslationEntry(entry);
 	}
 
@@ -228,14 +353,53 @@ public final class Processor {
 		return numPhysPages;
 	}
 
+	/**
+	 * Return the physical memory attached to this processor. Its size is
+	 * <tt>pageSize * getNumPhysPages()</tt>.
+	 * 
+	 * @return the main memory.
+	 */
+	public PhysicalMemory getPhysicalMemory() {
+		return memory;
+	}
+
 	/**
 	 * Return a reference to the physical memory array. The size of this array
-	 * is <tt>pageSize * getNumPhysPages()</tt>.
+	 * is <tt>pageSize * getNumPhysPages()</tt>. Only available when memory is
+	 * stored on the Java heap (<tt>Processor.memory = array</tt>); otherwise
+	 * use <tt>getPhysicalMemory()</tt>.
 	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
-		return mainMemory;
+		byte[] array = memory.array();
+		Lib.assertTrue(array != null, "main memory is not stored in an array");
+
+		return array;
+	}
+
+	/**
+	 * Discard any predecoded instructions cached for the specified physical
+	 * page. The processor does this itself when a user store modifies the
+	 * page, but code that writes physical memory through
+	 * <tt>getPhysicalMemory()</tt> or <tt>getMemory()</tt> must call this for
+	 * every page it modifies, or the processor may keep executing the page's
+	 * previous contents.
+	 * 
+	 * @param ppn the physical page whose contents were modified.
+	 */
+	public void invalidateInstructionCache(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		DecodedPage page = decodedPages[ppn];
+		if (page != null) {
+			for (int i = 0; i < wordsPerPage; i++) {
+				if (page.blocks[i] != null)
+					page.blocks[i].valid = false;
+			}
+
+			decodedPages[ppn] = null;
+		}
 	}
 
 	/**
@@ -292,6 +456,45 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		// fast path for the common case of a valid, aligned access
+		if ((vaddr & (size - 1)) == 0 && !Lib.test(dbgProcessor)) {
+			int vpn = vaddr >>> pageShift;
+			int offset = vaddr & (pageSize - 1);
+
+			if (usingTLB) {
+				int line = vpn & (hostCacheSize - 1);
+
+				if (hostVPNs[line] == vpn) {
+					int frame = hostFrames[line];
+
+					if (!writing)
+						return (frame & ~hostFlags) | offset;
+
+					if ((frame & hostReadOnly) == 0) {
+						if ((frame & hostDirty) == 0) {
+							translations[hostSlots[line]].dirty = true;
+							hostFrames[line] = frame | hostDirty;
+						}
+
+						return (frame & ~hostFlags) | offset;
+					}
+				}
+			}
+			else if (translations != null && vpn < translations.length) {
+				TranslationEntry entry = translations[vpn];
+
+				if (entry != null && entry.valid
+						&& !(writing && entry.readOnly) && entry.ppn >= 0
+						&& entry.ppn < numPhysPages) {
+					entry.used = true;
+					if (writing)
+						entry.dirty = true;
+
+					return (entry.ppn << pageShift) | offset;
+				}
+			}
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -307,6 +510,7 @@ public final class Processor {
 		int offset = offsetFromAddress(vaddr);
 
 		TranslationEntry entry = null;
+		int slot = -1;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
@@ -319,11 +523,14 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries in the set for a matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int first = getTLBSet(vpn) * tlbAssociativity;
+			for (int i = first; i < first + tlbAssociativity; i++) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& translations[i].asid == currentASID) {
 					entry = translations[i];
+					slot = i;
 					break;
 				}
 			}
@@ -352,6 +559,16 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		// remember this TLB entry for the fast path
+		if (usingTLB) {
+			int line = vpn & (hostCacheSize - 1);
+			hostVPNs[line] = vpn;
+			hostSlots[line] = slot;
+			hostFrames[line] = (ppn * pageSize)
+					| (entry.readOnly ? hostReadOnly : 0)
+					| (entry.dirty ? hostDirty : 0);
+		}
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -359,6 +576,18 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Forget any cached TLB lookup for the specified virtual page.
+	 * 
+	 * @param vpn the virtual page number.
+	 */
+	private void invalidateHostTranslation(int vpn) {
+		int line = vpn & (hostCacheSize - 1);
+
+		if (hostVPNs[line] == vpn)
+			hostVPNs[line] = -1;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -375,8 +604,7 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = memory.read(translate(vaddr, size, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +630,12 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		if (decodedPages[paddr >>> pageShift] != null)
+			invalidateInstructionCache(paddr >>> pageShift);
+
+		memory.write(paddr, size, value);
 	}
 
 	/**
@@ -457,6 +690,889 @@ public final class Processor {
 		registers[regNextPC] = nextPC;
 	}
 
+	/**
+	 * Return the number of instructions that can be executed before one
+	 * could make a pending interrupt due.
+	 * 
+	 * @return the number of instructions whose ticks can be charged in a
+	 * batch with <tt>chargeTicks()</tt>.
+	 */
+	private long userTicksUntilDue() {
+		return privilege.interrupt.ticksUntilDue(false);
+	}
+
+	/**
+	 * Charge the ticks of the instructions executed since the last call. No
+	 * interrupt handlers are invoked; <tt>userTicksUntilDue()</tt> guarantees
+	 * that none has become due.
+	 */
+	private void chargeTicks() {
+		if (unchargedTicks > 0) {
+			privilege.interrupt.tick(false, unchargedTicks);
+			unchargedTicks = 0;
+		}
+	}
+
+	/**
+	 * Execute the instruction at the current PC, using the predecoded
+	 * instruction cache. The instruction is decoded and cached the first time
+	 * its physical address is executed; instructions without a fast path are
+	 * handed to <tt>inst</tt>. The effect on registers, memory, and exceptions
+	 * is identical to <tt>inst.run()</tt>.
+	 * 
+	 * @param inst the instruction used for operations without a fast path.
+	 * @exception MipsException if the instruction caused an exception.
+	 */
+	private void runDecoded(Instruction inst) throws MipsException {
+		int[] regs = registers;
+
+		int paddr = translate(regs[regPC], 4, false);
+		DecodedPage page = decodedPage(paddr);
+		int index = (paddr >>> 2) & (wordsPerPage - 1);
+
+		int kind = page.kind[index];
+		if (kind == Predecoded.NONE)
+			kind = predecode(page, paddr);
+
+		int operands = page.regs[index];
+		int rs = operands & 0x1F;
+		int rt = (operands >>> 5) & 0x1F;
+		int dstReg = operands >>> 10;
+		int imm = page.imm[index];
+
+		int nextPC = regs[regNextPC] + 4;
+		int dst = 0;
+		int a, b;
+
+		switch (kind) {
+		case Predecoded.CLASSIC:
+			inst.run(memory.readInt(paddr));
+			return;
+
+		case Predecoded.ADD:
+			a = regs[rs];
+			b = regs[rt];
+			dst = a + b;
+			if (((a ^ dst) & (b ^ dst)) < 0)
+				throw new MipsException(exceptionOverflow);
+			break;
+		case Predecoded.ADDI:
+			a = regs[rs];
+			dst = a + imm;
+			if (((a ^ dst) & (imm ^ dst)) < 0)
+				throw new MipsException(exceptionOverflow);
+			break;
+		case Predecoded.ADDU:
+			dst = regs[rs] + regs[rt];
+			break;
+		case Predecoded.ADDIU:
+			dst = regs[rs] + imm;
+			break;
+		case Predecoded.SUB:
+			a = regs[rs];
+			b = regs[rt];
+			dst = a - b;
+			if (((a ^ b) & (a ^ dst)) < 0)
+				throw new MipsException(exceptionOverflow);
+			break;
+		case Predecoded.SUBU:
+			dst = regs[rs] - regs[rt];
+			break;
+
+		case Predecoded.SLL:
+			dst = regs[rt] << imm;
+			break;
+		case Predecoded.SLLV:
+			dst = regs[rt] << (regs[rs] & 0x1F);
+			break;
+		// srl operates on the sign-extended register, so it matches sra
+		case Predecoded.SRA:
+			dst = regs[rt] >> imm;
+			break;
+		case Predecoded.SRAV:
+			dst = regs[rt] >> (regs[rs] & 0x1F);
+			break;
+
+		case Predecoded.SLT:
+			dst = (regs[rs] < regs[rt]) ? 1 : 0;
+			break;
+		case Predecoded.SLTI:
+			dst = (regs[rs] < imm) ? 1 : 0;
+			break;
+		case Predecoded.SLTU:
+			dst = (Integer.compareUnsigned(regs[rs], regs[rt]) < 0) ? 1 : 0;
+			break;
+		case Predecoded.SLTIU:
+			dst = (Integer.compareUnsigned(regs[rs], imm) < 0) ? 1 : 0;
+			break;
+
+		case Predecoded.AND:
+			dst = regs[rs] & regs[rt];
+			break;
+		case Predecoded.ANDI:
+			dst = regs[rs] & imm;
+			break;
+		case Predecoded.OR:
+			dst = regs[rs] | regs[rt];
+			break;
+		case Predecoded.ORI:
+			dst = regs[rs] | imm;
+			break;
+		case Predecoded.XOR:
+			dst = regs[rs] ^ regs[rt];
+			break;
+		case Predecoded.XORI:
+			dst = regs[rs] ^ imm;
+			break;
+		case Predecoded.NOR:
+			dst = ~(regs[rs] | regs[rt]);
+			break;
+		case Predecoded.LUI:
+			dst = imm;
+			break;
+
+		case Predecoded.MFLO:
+			dst = regs[regLo];
+			break;
+		case Predecoded.MFHI:
+			dst = regs[regHi];
+			break;
+		case Predecoded.MTLO:
+			regs[regLo] = regs[rs];
+			break;
+		case Predecoded.MTHI:
+			regs[regHi] = regs[rs];
+			break;
+
+		case Predecoded.BEQ:
+			if (regs[rs] == regs[rt])
+				nextPC = regs[regNextPC] + imm;
+			break;
+		case Predecoded.BNE:
+			if (regs[rs] != regs[rt])
+				nextPC = regs[regNextPC] + imm;
+			break;
+		case Predecoded.BLEZ:
+			if (regs[rs] <= 0)
+				nextPC = regs[regNextPC] + imm;
+			break;
+		case Predecoded.BGTZ:
+			if (regs[rs] > 0)
+				nextPC = regs[regNextPC] + imm;
+			break;
+		case Predecoded.BLTZ:
+			dst = nextPC;
+			if (regs[rs] < 0)
+				nextPC = regs[regNextPC] + imm;
+			break;
+		case Predecoded.BGEZ:
+			dst = nextPC;
+			if (regs[rs] >= 0)
+				nextPC = regs[regNextPC] + imm;
+			break;
+		case Predecoded.J:
+			dst = nextPC;
+			nextPC = (regs[regNextPC] & 0xF0000000) | imm;
+			break;
+		case Predecoded.JR:
+			dst = nextPC;
+			nextPC = regs[rs];
+			break;
+
+		case Predecoded.LB:
+			delayedLoad(dstReg, memory.readByte(translate(regs[rs] + imm, 1,
+					false)), 0xFFFFFFFF);
+			advancePC(nextPC);
+			return;
+		case Predecoded.LH:
+			delayedLoad(dstReg, memory.readShort(translate(regs[rs] + imm, 2,
+					false)), 0xFFFFFFFF);
+			advancePC(nextPC);
+			return;
+		case Predecoded.LW:
+			delayedLoad(dstReg, memory.readInt(translate(regs[rs] + imm, 4,
+					false)), 0xFFFFFFFF);
+			advancePC(nextPC);
+			return;
+
+		case Predecoded.SB:
+			writeMem(regs[rs] + imm, 1, regs[rt]);
+			break;
+		case Predecoded.SH:
+			writeMem(regs[rs] + imm, 2, regs[rt]);
+			break;
+		case Predecoded.SW:
+			writeMem(regs[rs] + imm, 4, regs[rt]);
+			break;
+
+		default:
+			Lib.assertNotReached();
+		}
+
+		finishLoad();
+
+		if (dstReg != 0)
+			regs[dstReg] = dst;
+
+		advancePC(nextPC);
+	}
+
+	/**
+	 * Execute instructions using the basic-block engine. A straight-line run
+	 * of instructions, ending after a branch and its delay slot, after an
+	 * instruction without a fast path, or at the end of the page, is compiled
+	 * into a block of specialized operations the first time it is reached.
+	 * Each block remembers the blocks that followed it, so consecutive blocks
+	 * are chained without a lookup.
+	 * 
+	 * <p>
+	 * Every instruction is charged a tick, and ticks are batched the same way
+	 * as in <tt>run()</tt>. Within a batch no kernel code can run, so only the
+	 * first instruction of a block is fetched through <tt>translate()</tt>;
+	 * after an ordinary tick the next instruction is translated again, and
+	 * the block is left if it is no longer the next one in the block, for
+	 * example after a context switch. Address translation, exceptions, and
+	 * timing are therefore the same as for the other engines. This method
+	 * only returns by throwing an exception.
+	 * 
+	 * @param inst the instruction used for operations without a fast path.
+	 * @exception MipsException if an instruction caused an exception.
+	 */
+	private void runBlocks(Instruction inst) throws MipsException {
+		long batch = userTicksUntilDue();
+		int paddr = translate(registers[regPC], 4, false);
+		Block block = null;
+
+		while (true) {
+			block = nextBlock(block, paddr, inst);
+
+			BlockOp[] ops = block.ops;
+			int vaddr = registers[regPC];
+			int i = 0;
+
+			while (true) {
+				ops[i++].run();
+
+				if (batch > 0) {
+					batch--;
+					unchargedTicks++;
+
+					// no kernel code has run, so the rest of the block is still
+					// mapped to the same physical page
+					if (i < ops.length && registers[regPC] == vaddr + i * 4
+							&& block.valid)
+						continue;
+
+					paddr = translate(registers[regPC], 4, false);
+				}
+				else {
+					chargeTicks();
+					privilege.interrupt.tick(false);
+					batch = userTicksUntilDue();
+
+					paddr = translate(registers[regPC], 4, false);
+
+					if (i < ops.length && paddr == block.paddr + i * 4
+							&& block.valid)
+						continue;
+				}
+
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Find the block starting at the specified physical address, compiling it
+	 * if necessary, and link it to the block that was executed before it.
+	 * 
+	 * @param previous the block that was just executed, or <tt>null</tt>.
+	 * @param paddr the physical address of the next instruction.
+	 * @param inst the instruction used for operations without a fast path.
+	 * @return the block starting at <tt>paddr</tt>.
+	 */
+	private Block nextBlock(Block previous, int paddr, Instruction inst) {
+		if (previous != null) {
+			Block next = previous.next;
+			if (next != null && next.paddr == paddr && next.valid)
+				return next;
+
+			next = previous.alternate;
+			if (next != null && next.paddr == paddr && next.valid)
+				return next;
+		}
+
+		Block block = decodedPage(paddr).blocks[(paddr >>> 2)
+				& (wordsPerPage - 1)];
+		if (block == null)
+			block = compile(paddr, inst);
+
+		if (previous != null && previous.valid) {
+			previous.alternate = previous.next;
+			previous.next = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Compile the block starting at the specified physical address and add
+	 * it to the block cache.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @param inst the instruction used for operations without a fast path.
+	 * @return the new block.
+	 */
+	private Block compile(int paddr, Instruction inst) {
+		BlockOp[] ops = new BlockOp[maxBlockLength];
+		int length = 0;
+		int branchEnd = -1;
+
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+		DecodedPage page = decodedPage(paddr);
+
+		for (int addr = paddr; addr < pageEnd && length < maxBlockLength; addr += 4) {
+			int index = (addr >>> 2) & (wordsPerPage - 1);
+
+			int kind = page.kind[index];
+			if (kind == Predecoded.NONE)
+				kind = predecode(page, addr);
+
+			ops[length++] = compileOp(kind, page.regs[index], page.imm[index],
+					addr, inst);
+
+			// stop after the delay slot of a branch
+			if (kind == Predecoded.CLASSIC || length == branchEnd)
+				break;
+			if (kind >= Predecoded.BEQ && kind <= Predecoded.JR)
+				branchEnd = length + 1;
+		}
+
+		Block block = new Block(paddr, Arrays.copyOf(ops, length));
+		page.blocks[(paddr >>> 2) & (wordsPerPage - 1)] = block;
+
+		return block;
+	}
+
+	/**
+	 * Create the specialized operation for a predecoded instruction. Each
+	 * operation has exactly the effect of the corresponding case in
+	 * <tt>runDecoded()</tt>.
+	 */
+	private BlockOp compileOp(int kind, int operands, int imm, int paddr,
+			final Instruction inst) {
+		switch (kind) {
+		case Predecoded.CLASSIC:
+			final int value = memory.readInt(paddr);
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					inst.run(value);
+				}
+			};
+
+		case Predecoded.ADD:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					int a = registers[rs], b = registers[rt];
+					int dst = a + b;
+					if (((a ^ dst) & (b ^ dst)) < 0)
+						throw new MipsException(exceptionOverflow);
+					retire(rd, dst);
+				}
+			};
+		case Predecoded.ADDI:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					int a = registers[rs];
+					int dst = a + imm;
+					if (((a ^ dst) & (imm ^ dst)) < 0)
+						throw new MipsException(exceptionOverflow);
+					retire(rd, dst);
+				}
+			};
+		case Predecoded.ADDU:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] + registers[rt]);
+				}
+			};
+		case Predecoded.ADDIU:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] + imm);
+				}
+			};
+		case Predecoded.SUB:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					int a = registers[rs], b = registers[rt];
+					int dst = a - b;
+					if (((a ^ b) & (a ^ dst)) < 0)
+						throw new MipsException(exceptionOverflow);
+					retire(rd, dst);
+				}
+			};
+		case Predecoded.SUBU:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] - registers[rt]);
+				}
+			};
+
+		case Predecoded.SLL:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rt] << imm);
+				}
+			};
+		case Predecoded.SLLV:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rt] << (registers[rs] & 0x1F));
+				}
+			};
+		case Predecoded.SRA:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rt] >> imm);
+				}
+			};
+		case Predecoded.SRAV:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rt] >> (registers[rs] & 0x1F));
+				}
+			};
+
+		case Predecoded.SLT:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, (registers[rs] < registers[rt]) ? 1 : 0);
+				}
+			};
+		case Predecoded.SLTI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, (registers[rs] < imm) ? 1 : 0);
+				}
+			};
+		case Predecoded.SLTU:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, (Integer.compareUnsigned(registers[rs],
+							registers[rt]) < 0) ? 1 : 0);
+				}
+			};
+		case Predecoded.SLTIU:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd,
+							(Integer.compareUnsigned(registers[rs], imm) < 0) ? 1
+									: 0);
+				}
+			};
+
+		case Predecoded.AND:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] & registers[rt]);
+				}
+			};
+		case Predecoded.ANDI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] & imm);
+				}
+			};
+		case Predecoded.OR:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] | registers[rt]);
+				}
+			};
+		case Predecoded.ORI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] | imm);
+				}
+			};
+		case Predecoded.XOR:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] ^ registers[rt]);
+				}
+			};
+		case Predecoded.XORI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[rs] ^ imm);
+				}
+			};
+		case Predecoded.NOR:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, ~(registers[rs] | registers[rt]));
+				}
+			};
+		case Predecoded.LUI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, imm);
+				}
+			};
+
+		case Predecoded.MFLO:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[regLo]);
+				}
+			};
+		case Predecoded.MFHI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[regHi]);
+				}
+			};
+		case Predecoded.MTLO:
+			return new BlockOp(operands, imm) {
+				void run() {
+					registers[regLo] = registers[rs];
+					retire(0, 0);
+				}
+			};
+		case Predecoded.MTHI:
+			return new BlockOp(operands, imm) {
+				void run() {
+					registers[regHi] = registers[rs];
+					retire(0, 0);
+				}
+			};
+
+		case Predecoded.BEQ:
+			return new BlockOp(operands, imm) {
+				void run() {
+					branch(registers[rs] == registers[rt]);
+				}
+			};
+		case Predecoded.BNE:
+			return new BlockOp(operands, imm) {
+				void run() {
+					branch(registers[rs] != registers[rt]);
+				}
+			};
+		case Predecoded.BLEZ:
+			return new BlockOp(operands, imm) {
+				void run() {
+					branch(registers[rs] <= 0);
+				}
+			};
+		case Predecoded.BGTZ:
+			return new BlockOp(operands, imm) {
+				void run() {
+					branch(registers[rs] > 0);
+				}
+			};
+		case Predecoded.BLTZ:
+			return new BlockOp(operands, imm) {
+				void run() {
+					branch(registers[rs] < 0);
+				}
+			};
+		case Predecoded.BGEZ:
+			return new BlockOp(operands, imm) {
+				void run() {
+					branch(registers[rs] >= 0);
+				}
+			};
+		case Predecoded.J:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[regNextPC] + 4,
+							(registers[regNextPC] & 0xF0000000) | imm);
+				}
+			};
+		case Predecoded.JR:
+			return new BlockOp(operands, imm) {
+				void run() {
+					retire(rd, registers[regNextPC] + 4, registers[rs]);
+				}
+			};
+
+		case Predecoded.LB:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					delayedLoad(rd, memory.readByte(translate(registers[rs]
+							+ imm, 1, false)), 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		case Predecoded.LH:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					delayedLoad(rd, memory.readShort(translate(registers[rs]
+							+ imm, 2, false)), 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		case Predecoded.LW:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					delayedLoad(rd, memory.readInt(translate(registers[rs]
+							+ imm, 4, false)), 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+
+		case Predecoded.SB:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					writeMem(registers[rs] + imm, 1, registers[rt]);
+					retire(0, 0);
+				}
+			};
+		case Predecoded.SH:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					writeMem(registers[rs] + imm, 2, registers[rt]);
+					retire(0, 0);
+				}
+			};
+		case Predecoded.SW:
+			return new BlockOp(operands, imm) {
+				void run() throws MipsException {
+					writeMem(registers[rs] + imm, 4, registers[rt]);
+					retire(0, 0);
+				}
+			};
+
+		default:
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Complete an instruction that does not branch: finish any delayed load,
+	 * write the destination register, and advance the PC.
+	 * 
+	 * @param dstReg the destination register, or 0 for none.
+	 * @param dst the value to write to the destination register.
+	 */
+	private void retire(int dstReg, int dst) {
+		retire(dstReg, dst, registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete an instruction: finish any delayed load, write the destination
+	 * register, and advance the PC, moving to <i>nextPC</i> after the delay
+	 * slot.
+	 * 
+	 * @param dstReg the destination register, or 0 for none.
+	 * @param dst the value to write to the destination register.
+	 * @param nextPC the new value of the nextPC register.
+	 */
+	private void retire(int dstReg, int dst, int nextPC) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = dst;
+
+		advancePC(nextPC);
+	}
+
+	/**
+	 * Return the predecoded instruction cache entries for the physical page
+	 * containing the specified address, allocating them if the page has not
+	 * been decoded since it was last modified.
+	 * 
+	 * @param paddr a physical address in the page.
+	 * @return the page's predecoded instructions.
+	 */
+	private DecodedPage decodedPage(int paddr) {
+		DecodedPage page = decodedPages[paddr >>> pageShift];
+		if (page == null) {
+			page = new DecodedPage();
+			decodedPages[paddr >>> pageShift] = page;
+		}
+
+		return page;
+	}
+
+	/**
+	 * Decode the instruction word at the specified physical address and store
+	 * the result in the predecoded instruction cache. Register operands and
+	 * immediates are stored in the form used by <tt>runDecoded()</tt>, with
+	 * unsigned immediates already zero-extended and shift amounts, branch
+	 * offsets, and jump targets already shifted.
+	 * 
+	 * @param page the predecoded instructions of the page containing
+	 * <i>paddr</i>.
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @return the cached operation.
+	 */
+	private int predecode(DecodedPage page, int paddr) {
+		int value = memory.readInt(paddr);
+
+		int op = Lib.extract(value, 26, 6);
+		int rs = Lib.extract(value, 21, 5);
+		int rt = Lib.extract(value, 16, 5);
+		int rd = Lib.extract(value, 11, 5);
+		int sh = Lib.extract(value, 6, 5);
+		int func = Lib.extract(value, 0, 6);
+		int imm = Lib.extend(value, 0, 16);
+
+		Mips info;
+		switch (op) {
+		case 0:
+			info = Mips.specialtable[func];
+			break;
+		case 1:
+			info = Mips.regimmtable[rt];
+			break;
+		default:
+			info = Mips.optable[op];
+			break;
+		}
+
+		int flags = info.flags;
+		boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+		boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+
+		if (unsigned)
+			imm &= 0xFFFF;
+
+		int dstReg;
+		if (Lib.test(Mips.DSTRA, flags))
+			dstReg = regRA;
+		else if (info.format == Mips.IFMT)
+			dstReg = rt;
+		else
+			dstReg = rd;
+
+		int kind;
+		switch (info.operation) {
+		case Mips.ADD:
+			if (Lib.test(Mips.OVERFLOW, flags))
+				kind = immediate ? Predecoded.ADDI : Predecoded.ADD;
+			else
+				kind = immediate ? Predecoded.ADDIU : Predecoded.ADDU;
+			break;
+		case Mips.SUB:
+			kind = Lib.test(Mips.OVERFLOW, flags) ? Predecoded.SUB
+					: Predecoded.SUBU;
+			break;
+		case Mips.SLL:
+			kind = Lib.test(Mips.SRC1SH, flags) ? Predecoded.SLL
+					: Predecoded.SLLV;
+			imm = sh;
+			break;
+		case Mips.SRA:
+		case Mips.SRL:
+			kind = Lib.test(Mips.SRC1SH, flags) ? Predecoded.SRA
+					: Predecoded.SRAV;
+			imm = sh;
+			break;
+		case Mips.SLT:
+			if (unsigned)
+				kind = immediate ? Predecoded.SLTIU : Predecoded.SLTU;
+			else
+				kind = immediate ? Predecoded.SLTI : Predecoded.SLT;
+			break;
+		case Mips.AND:
+			kind = immediate ? Predecoded.ANDI : Predecoded.AND;
+			break;
+		case Mips.OR:
+			kind = immediate ? Predecoded.ORI : Predecoded.OR;
+			break;
+		case Mips.XOR:
+			kind = immediate ? Predecoded.XORI : Predecoded.XOR;
+			break;
+		case Mips.NOR:
+			kind = Predecoded.NOR;
+			break;
+		case Mips.LUI:
+			kind = Predecoded.LUI;
+			imm <<= 16;
+			break;
+		case Mips.MFLO:
+			kind = Predecoded.MFLO;
+			break;
+		case Mips.MFHI:
+			kind = Predecoded.MFHI;
+			break;
+		case Mips.MTLO:
+			kind = Predecoded.MTLO;
+			break;
+		case Mips.MTHI:
+			kind = Predecoded.MTHI;
+			break;
+		case Mips.BEQ:
+			kind = Predecoded.BEQ;
+			imm <<= 2;
+			break;
+		case Mips.BNE:
+			kind = Predecoded.BNE;
+			imm <<= 2;
+			break;
+		case Mips.BLEZ:
+			kind = Predecoded.BLEZ;
+			imm <<= 2;
+			break;
+		case Mips.BGTZ:
+			kind = Predecoded.BGTZ;
+			imm <<= 2;
+			break;
+		case Mips.BLTZ:
+			kind = Predecoded.BLTZ;
+			imm <<= 2;
+			break;
+		case Mips.BGEZ:
+			kind = Predecoded.BGEZ;
+			imm <<= 2;
+			break;
+		case Mips.JUMP:
+			if (info.format == Mips.JFMT) {
+				kind = Predecoded.J;
+				imm = Lib.extract(value, 0, 26) << 2;
+			}
+			else {
+				kind = Predecoded.JR;
+			}
+			break;
+		case Mips.LOAD:
+			if (Lib.test(Mips.SIZEB, flags))
+				kind = Predecoded.LB;
+			else if (Lib.test(Mips.SIZEH, flags))
+				kind = Predecoded.LH;
+			else
+				kind = Predecoded.LW;
+			break;
+		case Mips.STORE:
+			if (Lib.test(Mips.SIZEB, flags))
+				kind = Predecoded.SB;
+			else if (Lib.test(Mips.SIZEH, flags))
+				kind = Predecoded.SH;
+			else
+				kind = Predecoded.SW;
+			break;
+		default:
+			kind = Predecoded.CLASSIC;
+			break;
+		}
+
+		// only linking branches, loads, and ordinary results write a register
+		if (kind != Predecoded.LB && kind != Predecoded.LH
+				&& kind != Predecoded.LW && !Lib.test(Mips.DST, flags))
+			dstReg = 0;
+
+		int index = (paddr >>> 2) & (wordsPerPage - 1);
+		page.kind[index] = kind;
+		page.regs[index] = rs | (rt << 5) | (dstReg << 10);
+		page.imm[index] = imm;
+
+		return kind;
+	}
+
 	/** Caused by a syscall instruction. */
 	public static final int exceptionSyscall = 0;
 
@@ -552,6 +1668,12 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+
+	/** The address space identifier used to match TLB entries. */
+	private int currentASID = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -561,14 +1683,57 @@ public final class Processor {
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
+	/** log<sub>2</sub> of the page size. */
+	private static final int pageShift = 10;
+
 	/** Number of pages in a 32-bit address space. */
 	public static final int maxPages = (int) (0x100000000L / pageSize);
 
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
+	/**
+	 * A direct-mapped cache of successful TLB lookups, indexed by the low
+	 * bits of the virtual page number. Each line holds the virtual page
+	 * number (or -1 if empty), the index of the TLB entry, and the physical
+	 * page address with the entry's read-only flag and whether its dirty bit
+	 * is already set. Only used with a TLB, whose entries can only change
+	 * through <tt>writeTLBEntry()</tt>; a page table belongs to the kernel,
+	 * which may modify its entries at any time.
+	 */
+	private int[] hostVPNs, hostSlots, hostFrames;
+
+	private static final int hostCacheSize = 256;
+
+	private static final int hostReadOnly = 0x1, hostDirty = 0x2,
+			hostFlags = hostReadOnly | hostDirty;
+
 	/** Main memory for user programs. */
-	private byte[] mainMemory;
+	private PhysicalMemory memory;
+
+	/** Number of instruction words in a page. */
+	private static final int wordsPerPage = pageSize / 4;
+
+	/**
+	 * The predecoded instructions of each physical page, or <tt>null</tt> if
+	 * no instruction in the page has been decoded since it was last modified.
+	 */
+	private DecodedPage[] decodedPages;
+
+	/** The maximum number of instructions in a compiled block. */
+	private static final int maxBlockLength = 64;
+
+	/**
+	 * The number of instructions executed by the current thread whose ticks
+	 * have not yet been charged.
+	 */
+	private long unchargedTicks = 0;
+
+	/** The execution engine selected by <tt>Processor.engine</tt>. */
+	private int engine;
+
+	private static final int engineClassic = 0, enginePredecoded = 1,
+			engineBlock = 2;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -633,6 +1798,13 @@ public final class Processor {
 			writeBack();
 		}
 
+		public void run(int value) throws MipsException {
+			this.value = value;
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -1087,6 +2259,91 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The predecoded instruction cache entries of one physical page, indexed
+	 * by word within the page.
+	 */
+	private static class DecodedPage {
+		/**
+		 * The predecoded operation of each word, or <tt>Predecoded.NONE</tt>
+		 * if the word has not been decoded.
+		 */
+		final int[] kind = new int[wordsPerPage];
+
+		/** The predecoded source and destination registers of each word. */
+		final int[] regs = new int[wordsPerPage];
+
+		/** The predecoded immediate, shift amount, or jump target of each word. */
+		final int[] imm = new int[wordsPerPage];
+
+		/** The compiled block starting at each word, if any. */
+		final Block[] blocks = new Block[wordsPerPage];
+	}
+
+	/**
+	 * A straight-line run of compiled instructions, with links to the blocks
+	 * most recently executed after it.
+	 */
+	private static class Block {
+		Block(int paddr, BlockOp[] ops) {
+			this.paddr = paddr;
+			this.ops = ops;
+		}
+
+		final int paddr;
+
+		final BlockOp[] ops;
+
+		/** <tt>false</tt> once the page containing this block is modified. */
+		boolean valid = true;
+
+		Block next, alternate;
+	}
+
+	/**
+	 * A single compiled instruction. Subclasses execute one predecoded
+	 * operation with its operands bound.
+	 */
+	private abstract class BlockOp {
+		BlockOp(int operands, int imm) {
+			rs = operands & 0x1F;
+			rt = (operands >>> 5) & 0x1F;
+			rd = operands >>> 10;
+			this.imm = imm;
+		}
+
+		abstract void run() throws MipsException;
+
+		/**
+		 * Complete a conditional branch, which may also link.
+		 * 
+		 * @param taken <tt>true</tt> if the branch is taken.
+		 */
+		void branch(boolean taken) {
+			int nextPC = registers[regNextPC] + 4;
+
+			retire(rd, nextPC, taken ? registers[regNextPC] + imm : nextPC);
+		}
+
+		final int rs, rt, rd, imm;
+	}
+
+	/**
+	 * The operations cached by the predecoded instruction cache. Operations
+	 * that share the semantics of the interpreter are merged (for example,
+	 * <tt>jal</tt> is a <tt>J</tt> with a destination register), and the rare
+	 * ones are left to the <tt>Instruction</tt> class.
+	 */
+	private static class Predecoded {
+		static final int NONE = 0, CLASSIC = 1, ADD = 2, ADDI = 3, ADDU = 4,
+				ADDIU = 5, SUB = 6, SUBU = 7, SLL = 8, SLLV = 9, SRA = 10,
+				SRAV = 11, SLT = 12, SLTI = 13, SLTU = 14, SLTIU = 15, AND = 16,
+				ANDI = 17, OR = 18, ORI = 19, XOR = 20, XORI = 21, NOR = 22,
+				LUI = 23, MFLO = 24, MFHI = 25, MTLO = 26, MTHI = 27, BEQ = 28,
+				BNE = 29, BLEZ = 30, BGTZ = 31, BLTZ = 32, BGEZ = 33, J = 34,
+				JR = 35, LB = 36, LH = 37, LW = 38, SB = 39, SH = 40, SW = 41;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -29,6 +29,10 @@ public final class Stats {
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		System.out.println("Fault service: faults " + numFaultsServiced
+				+ ", average ticks " + (numFaultsServiced == 0 ? 0
+						: faultServiceTicks / numFaultsServiced)
+				+ ", max ticks " + maxFaultServiceTicks);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -75,6 +79,15 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The total number of page faults the kernel has brought pages in for. */
+	public int numFaultsServiced = 0;
+
+	/** The total amount of simulated time spent servicing page faults. */
+	public long faultServiceTicks = 0;
+
+	/** The longest amount of simulated time spent servicing one page fault. */
+	public long maxFaultServiceTicks = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +15,18 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * Only one of these JVM threads runs at a time, and a context switch hands
+ * control from one to the next. <tt>TCB.handoff</tt> in <tt>nachos.conf</tt>
+ * selects how: <tt>monitor</tt> (the default) uses <tt>wait()</tt> and
+ * <tt>notify()</tt> on a monitor bound to each TCB; <tt>park</tt> uses
+ * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, which wake the next
+ * thread directly. Either way a switch costs an operating system thread
+ * switch, so the two take about as long. <tt>TCB.maxThreads</tt> limits the
+ * number of TCBs in existence (250 by default), and <tt>TCB.stackSize</tt>
+ * sets the stack size in bytes of the JVM threads (0, the default, uses the
+ * JVM default), which bounds how many threads fit in memory.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +52,27 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+
+		String handoff = Config.getString("TCB.handoff", "monitor");
+		if (handoff.equals("park"))
+			useMonitor = false;
+		else if (handoff.equals("monitor"))
+			useMonitor = true;
+		else
+			Lib.assertNotReached("unknown TCB.handoff: " + handoff);
+	}
+
+	/**
+	 * Return the maximum number of started, non-destroyed TCBs that can be in
+	 * existence, set by <tt>TCB.maxThreads</tt>.
+	 * 
+	 * @return the maximum number of TCBs.
+	 */
+	public static int getMaxThreads() {
+		return maxThreads;
 	}
 
 	/**
@@ -102,7 +136,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = new Thread(null, tcbTarget, "TCB", stackSize);
 				}
 			});
 
@@ -290,15 +324,47 @@ public final class TCB {
 		currentTCB = this;
 	}
 
+	/**
+	 * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
+	 */
+	private void waitForInterrupt() {
+		if (useMonitor) {
+			waitOnMonitor();
+			return;
+		}
+
+		// park() may return spuriously, so recheck the flag
+		while (!running)
+			LockSupport.park(this);
+	}
+
+	/**
+	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
+	 * and unparking its Java thread. Used in the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching to this TCB.
+	 */
+	private void interrupt() {
+		if (useMonitor) {
+			notifyMonitor();
+			return;
+		}
+
+		// if the thread has not parked yet, park() will return immediately
+		running = true;
+		LockSupport.unpark(javaThread);
+	}
+
 	/**
 	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * set to <tt>true</tt>. Used by <tt>waitForInterrupt()</tt> when
+	 * <tt>TCB.handoff</tt> is <tt>monitor</tt>.
 	 */
-	private synchronized void waitForInterrupt() {
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -309,12 +375,11 @@ public final class TCB {
 	}
 
 	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * Set this TCB's <tt>running</tt> flag to <tt>true</tt> and signal the
+	 * monitor bound to it. Used by <tt>interrupt()</tt> when
+	 * <tt>TCB.handoff</tt> is <tt>monitor</tt>.
 	 */
-	private synchronized void interrupt() {
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -344,7 +409,16 @@ public final class TCB {
 	 * The maximum number of started, non-destroyed TCB's that can be in
 	 * existence.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 250;
+
+	/** The stack size of the Java threads, or 0 for the JVM default. */
+	private static long stackSize = 0;
+
+	/**
+	 * <tt>true</tt> to hand off between Java threads with a monitor, rather
+	 * than with <tt>LockSupport</tt>.
+	 */
+	private static boolean useMonitor = false;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -401,9 +475,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile, so that a thread woken by <tt>interrupt()</tt> sees
+	 * everything the waking thread did before setting it.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
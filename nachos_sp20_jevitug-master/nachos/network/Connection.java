@@ -0,0 +1,586 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * One end of a reliable, ordered byte stream between two ports, created by
+ * <tt>Transport.connect()</tt> or <tt>Transport.accept()</tt>. A connection
+ * is used as an <tt>OpenFile</tt>: reads never block and return whatever has
+ * arrived, and writes block only while the send queue is full.
+ *
+ * <p>
+ * Written data is cut into segments, and up to a window of them are sent
+ * without waiting for acknowledgments. The window is the smaller of the
+ * transport's window and the one the receiver last advertised, which is how
+ * much room it has left to buffer segments, so a receiver that is not being
+ * read stops the sender (flow control). A receiver acknowledges every
+ * sequenced segment with the next sequence number it expects (cumulative
+ * acknowledgment) and the segments it holds past a gap (selective
+ * acknowledgment).
+ *
+ * <p>
+ * The network link never reorders packets, so a segment that is still
+ * unacknowledged when a segment sent after it is selectively acknowledged
+ * has been lost, and is sent again at once. Other losses, such as the last
+ * segments of a burst, are found by the retransmission timer, which uses the
+ * measured round-trip time.
+ *
+ * <p>
+ * Everything except the constructor and the <tt>OpenFile</tt> methods is
+ * called with the transport's lock held.
+ */
+public class Connection extends OpenFile {
+	/**
+	 * Allocate a new connection.
+	 *
+	 * @param transport the transport the connection belongs to.
+	 * @param localPort the port on this machine.
+	 * @param remoteLink the link address of the other end.
+	 * @param remotePort the port of the other end.
+	 * @param state <tt>synSent</tt> or <tt>synReceived</tt>.
+	 */
+	Connection(Transport transport, int localPort, int remoteLink,
+			int remotePort, int state) {
+		super(null, "connection to (" + remoteLink + ":" + remotePort + ")");
+
+		this.transport = transport;
+		this.localPort = localPort;
+		this.remoteLink = remoteLink;
+		this.remotePort = remotePort;
+		this.state = state;
+
+		int windowSize = transport.windowSize;
+		sent = new SentSegment[windowSize];
+		reordered = new byte[windowSize][];
+		peerWindow = windowSize;
+		rto = transport.initialRTO;
+
+		stateChanged = new Condition(transport.lock);
+		canWrite = new Condition(transport.lock);
+	}
+
+	/**
+	 * Read the data that has arrived, without waiting for more.
+	 *
+	 * @return the number of bytes read, which is 0 if no data has arrived,
+	 * or -1 if the connection failed and no data is left.
+	 */
+	public int read(byte[] buf, int offset, int length) {
+		transport.lock.acquire();
+
+		int oldWindow = advertisedWindow();
+
+		int amount = 0;
+		while (amount < length && !readable.isEmpty()) {
+			byte[] data = readable.getFirst();
+			int n = Math.min(length - amount, data.length - readOffset);
+
+			System.arraycopy(data, readOffset, buf, offset + amount, n);
+			amount += n;
+			readOffset += n;
+
+			if (readOffset == data.length) {
+				readable.removeFirst();
+				readOffset = 0;
+			}
+		}
+
+		// the sender may be waiting for room
+		if (oldWindow == 0 && advertisedWindow() > 0 && state == established)
+			sendAck();
+
+		if (amount == 0 && state == reset)
+			amount = -1;
+
+		transport.lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Queue data to be sent, waiting while the send queue is full.
+	 *
+	 * @return the number of bytes queued, or -1 if the connection has failed
+	 * or been closed.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		transport.lock.acquire();
+
+		int amount = 0;
+		while (amount < length) {
+			if (state != established || localClosed)
+				break;
+
+			if (unsent.size() >= transport.sendQueueLimit) {
+				canWrite.sleep();
+				continue;
+			}
+
+			// fill up the last queued segment before starting another
+			byte[] last = unsent.peekLast();
+			int n;
+			if (last != null && last.length < Segment.maxDataLength) {
+				n = Math.min(length - amount, Segment.maxDataLength
+						- last.length);
+				byte[] data = new byte[last.length + n];
+				System.arraycopy(last, 0, data, 0, last.length);
+				System.arraycopy(buf, offset + amount, data, last.length, n);
+				unsent.set(unsent.size() - 1, data);
+			}
+			else {
+				n = Math.min(length - amount, Segment.maxDataLength);
+				byte[] data = new byte[n];
+				System.arraycopy(buf, offset + amount, data, 0, n);
+				unsent.add(data);
+			}
+			amount += n;
+
+			sendQueued(false);
+		}
+
+		if (amount == 0 && length > 0)
+			amount = -1;
+
+		transport.lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Close this end of the connection. Data already written is still
+	 * delivered, followed by a <tt>FIN</tt>; data that arrives from now on is
+	 * acknowledged and dropped.
+	 */
+	public void close() {
+		transport.lock.acquire();
+
+		if (!localClosed) {
+			localClosed = true;
+			readable.clear();
+			readOffset = 0;
+
+			if (state == established)
+				sendQueued(false);
+			else
+				transport.remove(this);
+
+			canWrite.wakeAll();
+		}
+
+		transport.lock.release();
+	}
+
+	/**
+	 * Wait until a connection this end is opening is established or fails.
+	 *
+	 * @return <tt>true</tt> if the connection was established.
+	 */
+	boolean waitEstablished() {
+		while (state == synSent)
+			stateChanged.sleep();
+
+		return state == established;
+	}
+
+	/**
+	 * Send the first <tt>SYN</tt> of a connection this end is opening.
+	 */
+	void sendSyn() {
+		lastSendTime = Machine.timer().getTime();
+		transport.send(makeSegment(Segment.SYN, 0, new byte[0]));
+	}
+
+	/**
+	 * Accept the connection request this connection was created for, or
+	 * answer a repeated one.
+	 */
+	void sendSynAck() {
+		state = established;
+		transport.send(makeSegment(Segment.SYN | Segment.ACK, 0, new byte[0]));
+	}
+
+	/**
+	 * Handle a segment that has arrived for this connection.
+	 *
+	 * @param segment the segment.
+	 */
+	void receive(Segment segment) {
+		if (state == synReceived || state == reset)
+			return;
+
+		// a SYN/ACK, or data if the SYN/ACK was lost, opens the connection
+		if (state == synSent) {
+			if ((segment.flags & Segment.ACK) == 0)
+				return;
+
+			state = established;
+			timeouts = 0;
+			rto = transport.initialRTO;
+			stateChanged.wakeAll();
+		}
+
+		if ((segment.flags & Segment.ACK) != 0)
+			receiveAck(segment);
+
+		if (segment.isSequenced() && state == established) {
+			receiveData(segment);
+			sendAck();
+		}
+	}
+
+	/**
+	 * Test whether the retransmission timer must run for this connection.
+	 *
+	 * @return <tt>true</tt> if something sent could need to be sent again.
+	 */
+	boolean needsTimer() {
+		if (state == synSent)
+			return true;
+
+		return state == established
+				&& (nextSeq != sendBase || peerWindow == 0 && hasQueued());
+	}
+
+	/**
+	 * Send again anything whose acknowledgment is overdue, back off the
+	 * timer, and give up on the connection after too many timeouts in a row.
+	 */
+	void checkTimers() {
+		long now = Machine.timer().getTime();
+
+		// a connection request is never given up on (see connect() in
+		// syscall.h), only sent less and less often
+		if (state == synSent) {
+			if (now - lastSendTime >= rto) {
+				rto = Math.min(2 * rto, transport.maxRTO);
+				sendSyn();
+			}
+			return;
+		}
+
+		if (state != established)
+			return;
+
+		if (nextSeq != sendBase) {
+			boolean expired = false;
+			for (int seq = sendBase; seq < nextSeq; seq++) {
+				SentSegment record = sent[seq % sent.length];
+				if (!record.sacked && now - record.sentAt >= rto) {
+					record.retransmitted = true;
+					transmit(seq, record);
+					expired = true;
+				}
+			}
+
+			if (expired)
+				timedOut();
+		}
+		else if (peerWindow == 0 && hasQueued() && now - lastSendTime >= rto) {
+			// probe the closed window with a new segment, which the
+			// receiver will answer with its window
+			sendQueued(true);
+		}
+	}
+
+	/**
+	 * Test whether this connection is done with, because it has failed or
+	 * because this end was closed and its <tt>FIN</tt> acknowledged.
+	 *
+	 * @return <tt>true</tt> if the connection can be forgotten.
+	 */
+	boolean isFinished() {
+		return localClosed && (state == reset || finAcked);
+	}
+
+	/**
+	 * Count a timeout, backing off the timer, or give up on the connection if
+	 * there have been too many in a row.
+	 *
+	 * @return <tt>false</tt> if the connection has failed.
+	 */
+	private boolean timedOut() {
+		if (++timeouts > transport.maxTimeouts) {
+			Lib.debug(dbgTransport, "giving up on " + this);
+
+			state = reset;
+			unsent.clear();
+			stateChanged.wakeAll();
+			canWrite.wakeAll();
+
+			if (localClosed)
+				transport.remove(this);
+
+			return false;
+		}
+
+		rto = Math.min(2 * rto, transport.maxRTO);
+		return true;
+	}
+
+	private boolean hasQueued() {
+		return !unsent.isEmpty() || localClosed && !finQueued;
+	}
+
+	/**
+	 * Send queued segments while the window allows, followed by the
+	 * <tt>FIN</tt> once this end is closed.
+	 *
+	 * @param probe send one segment even if the window is closed.
+	 */
+	private void sendQueued(boolean probe) {
+		int window = Math.min(sent.length, peerWindow);
+		if (probe)
+			window = Math.max(window, 1);
+
+		while (nextSeq - sendBase < window) {
+			byte[] data;
+			if (!unsent.isEmpty()) {
+				data = unsent.removeFirst();
+			}
+			else if (localClosed && !finQueued) {
+				data = new byte[0];
+				finQueued = true;
+			}
+			else {
+				break;
+			}
+
+			SentSegment record = new SentSegment(data);
+			sent[nextSeq % sent.length] = record;
+			transmit(nextSeq, record);
+			nextSeq++;
+		}
+
+		if (unsent.size() < transport.sendQueueLimit)
+			canWrite.wakeAll();
+	}
+
+	private void transmit(int seq, SentSegment record) {
+		int flags = Segment.ACK;
+		if (record.data.length == 0)
+			flags |= Segment.FIN;
+
+		record.sentAt = lastSendTime = Machine.timer().getTime();
+		transport.send(makeSegment(flags, seq, record.data));
+	}
+
+	private void receiveAck(Segment segment) {
+		int ack = Segment.unwrap(segment.ack, sendBase);
+		if (ack < sendBase || ack > nextSeq)
+			return;
+
+		long now = Machine.timer().getTime();
+		peerWindow = segment.window;
+
+		if (ack > sendBase) {
+			// Karn: only time segments that were sent once
+			SentSegment last = sent[(ack - 1) % sent.length];
+			if (!last.retransmitted)
+				measureRTT(now - last.sentAt);
+
+			for (int seq = sendBase; seq < ack; seq++) {
+				if (sent[seq % sent.length].data.length == 0)
+					finAcked = true;
+				sent[seq % sent.length] = null;
+			}
+
+			sendBase = ack;
+			timeouts = 0;
+		}
+
+		// everything sent before a selectively acknowledged segment and not
+		// acknowledged itself was lost, since the link keeps packets in order
+		int highest = -1;
+		for (int i = 0; i < 16; i++) {
+			int seq = ack + 1 + i;
+			if ((segment.sack & (1 << i)) != 0 && seq < nextSeq) {
+				sent[seq % sent.length].sacked = true;
+				highest = seq;
+			}
+		}
+		if (highest != -1) {
+			long mark = sent[highest % sent.length].sentAt;
+			for (int seq = sendBase; seq < highest; seq++) {
+				SentSegment record = sent[seq % sent.length];
+				if (!record.sacked && record.sentAt < mark) {
+					Lib.debug(dbgTransport, "fast retransmit of " + seq);
+					record.retransmitted = true;
+					transmit(seq, record);
+				}
+			}
+		}
+
+		if (isFinished())
+			transport.remove(this);
+		else
+			sendQueued(false);
+	}
+
+	private void measureRTT(long sample) {
+		if (srtt == 0) {
+			srtt = sample;
+			rttvar = sample / 2;
+		}
+		else {
+			rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+			srtt = (7 * srtt + sample) / 8;
+		}
+
+		rto = Math.max(transport.minRTO,
+				Math.min(srtt + 4 * rttvar, transport.maxRTO));
+	}
+
+	private void receiveData(Segment segment) {
+		int seq = Segment.unwrap(segment.seq, rcvNext);
+		if (peerFinished || seq < rcvNext || seq >= rcvNext + advertisedWindow())
+			return;
+
+		if (reordered[seq % reordered.length] == null)
+			reordered[seq % reordered.length] = segment.data;
+
+		while (reordered[rcvNext % reordered.length] != null) {
+			byte[] data = reordered[rcvNext % reordered.length];
+			reordered[rcvNext % reordered.length] = null;
+			rcvNext++;
+
+			if (data.length == 0)
+				peerFinished = true;
+			else if (!localClosed)
+				readable.add(data);
+		}
+	}
+
+	private void sendAck() {
+		transport.send(makeSegment(Segment.ACK, nextSeq, new byte[0]));
+	}
+
+	/**
+	 * Return how many sequence numbers, starting with the next one expected,
+	 * this end can buffer.
+	 */
+	private int advertisedWindow() {
+		return reordered.length - readable.size();
+	}
+
+	private Segment makeSegment(int flags, int seq, byte[] data) {
+		// the selective acknowledgment bits for the segments after rcvNext
+		int sack = 0;
+		for (int i = 0; i < 16 && i + 1 < reordered.length; i++) {
+			if (reordered[(rcvNext + 1 + i) % reordered.length] != null)
+				sack |= 1 << i;
+		}
+
+		try {
+			return new Segment(remoteLink, remotePort, transport.linkAddress,
+					localPort, flags, advertisedWindow(), seq, rcvNext, sack,
+					data);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Return a string representation of this connection.
+	 */
+	public String toString() {
+		return "connection (" + transport.linkAddress + ":" + localPort
+				+ ") to (" + remoteLink + ":" + remotePort + ")";
+	}
+
+	/**
+	 * A segment that has been sent and not acknowledged.
+	 */
+	private static class SentSegment {
+		SentSegment(byte[] data) {
+			this.data = data;
+		}
+
+		/** The data sent, or an empty array for a <tt>FIN</tt>. */
+		byte[] data;
+
+		/** When the segment was last sent. */
+		long sentAt;
+
+		/** True if the segment has been sent more than once. */
+		boolean retransmitted = false;
+
+		/** True if the receiver has it, but not everything before it. */
+		boolean sacked = false;
+	}
+
+	Transport transport;
+
+	int localPort, remoteLink, remotePort;
+
+	/**
+	 * <tt>synSent</tt>, <tt>synReceived</tt>, <tt>established</tt> or
+	 * <tt>reset</tt>.
+	 */
+	int state;
+
+	/** True once this end has been closed. */
+	private boolean localClosed = false;
+
+	/** True once the <tt>FIN</tt> has been given a sequence number. */
+	private boolean finQueued = false;
+
+	/** True once the other end has acknowledged the <tt>FIN</tt>. */
+	private boolean finAcked = false;
+
+	/** True once the other end's <tt>FIN</tt> has arrived in order. */
+	private boolean peerFinished = false;
+
+	/** Written data not yet given a sequence number, one segment each. */
+	private LinkedList<byte[]> unsent = new LinkedList<byte[]>();
+
+	/** The segments sent and not acknowledged, by sequence number. */
+	private SentSegment[] sent;
+
+	/** The oldest sequence number not acknowledged. */
+	private int sendBase = 0;
+
+	/** The sequence number the next new segment will get. */
+	private int nextSeq = 0;
+
+	/** The window the other end last advertised. */
+	private int peerWindow;
+
+	/** The retransmission timeout, in ticks. */
+	private long rto;
+
+	/** The smoothed round-trip time and its mean deviation, in ticks. */
+	private long srtt = 0, rttvar = 0;
+
+	/** The number of timeouts since something was last acknowledged. */
+	private int timeouts = 0;
+
+	/** When a segment was last sent for this connection. */
+	private long lastSendTime = 0;
+
+	/** The next sequence number expected from the other end. */
+	private int rcvNext = 0;
+
+	/** Segments that arrived before the one expected, by sequence number. */
+	private byte[][] reordered;
+
+	/** Data received in order and not yet read. */
+	private LinkedList<byte[]> readable = new LinkedList<byte[]>();
+
+	/** How much of the first readable segment has been read. */
+	private int readOffset = 0;
+
+	/** Signalled when the connection is established or fails. */
+	private Condition stateChanged;
+
+	/** Signalled when there is room in the send queue. */
+	private Condition canWrite;
+
+	static final int synSent = 0, synReceived = 1, established = 2, reset = 3;
+
+	private static final char dbgTransport = 'T';
+}
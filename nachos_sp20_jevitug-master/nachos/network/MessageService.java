@@ -0,0 +1,485 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Sends messages of any length between ports, by splitting each one into
+ * fragments that fit in a <tt>MailMessage</tt> and putting them back together
+ * at the destination. Like mail, a message is either delivered whole or lost.
+ *
+ * <p>
+ * Every fragment starts with the number of its message, which each source
+ * port counts up modulo 256, and its own number within the message. The
+ * first fragment also carries the length of the message. Because the network
+ * link never reorders packets, the fragments of a message arrive in order,
+ * and any other fragment than the next one expected means that the rest of
+ * the message being put together was lost.
+ *
+ * <p>
+ * When a message starts to arrive while a thread is waiting in
+ * <tt>receive()</tt> with a buffer big enough for it, its fragments are
+ * copied straight into that buffer. Otherwise they are collected in a buffer
+ * taken from a pool of at most <tt>MessageService.reassemblyBytes</tt> bytes
+ * (64KB by default), which is copied out when the message is received. If the
+ * pool is full, the oldest incomplete messages are dropped to make room.
+ *
+ * <p>
+ * A port that is received on with a message service must not also be used by
+ * a <tt>Transport</tt> or directly through the <tt>PostOffice</tt>.
+ */
+public class MessageService {
+	/**
+	 * Allocate a new message service.
+	 *
+	 * @param postOffice the post office to send and receive fragments with.
+	 */
+	public MessageService(PostOffice postOffice) {
+		this.postOffice = postOffice;
+
+		maxPoolBytes = Config.getInteger("MessageService.reassemblyBytes",
+				1 << 16);
+		Lib.assertTrue(maxPoolBytes >= 0);
+
+		lock = new Lock();
+
+		ports = new Port[MailMessage.portLimit];
+		sendLocks = new Lock[MailMessage.portLimit];
+		for (int i = 0; i < sendLocks.length; i++)
+			sendLocks[i] = new Lock();
+		nextMessage = new int[MailMessage.portLimit];
+	}
+
+	/**
+	 * Send a message. Returns once every fragment has been queued to the post
+	 * office.
+	 *
+	 * @param dstLink the destination link address.
+	 * @param dstPort the destination port.
+	 * @param srcPort the source port.
+	 * @param data the array containing the message.
+	 * @param offset the offset of the message in <i>data</i>.
+	 * @param length the length of the message.
+	 * @return <tt>true</tt> if the message was sent, or <tt>false</tt> if the
+	 * arguments are not valid or the message is longer than
+	 * <tt>maxMessageLength</tt>.
+	 */
+	public boolean send(int dstLink, int dstPort, int srcPort, byte[] data,
+			int offset, int length) {
+		if (dstLink < 0 || dstLink >= Packet.linkAddressLimit || dstPort < 0
+				|| dstPort >= MailMessage.portLimit || srcPort < 0
+				|| srcPort >= MailMessage.portLimit || offset < 0
+				|| length < 0 || length > maxMessageLength
+				|| offset + length > data.length)
+			return false;
+
+		int srcLink = postOffice.getLinkAddress();
+
+		// the fragments of messages from one port must not be interleaved
+		sendLocks[srcPort].acquire();
+
+		int message = nextMessage[srcPort];
+		nextMessage[srcPort] = (message + 1) % 256;
+
+		int fragment = 0, position = 0;
+		do {
+			int header = (fragment == 0) ? firstHeaderLength : headerLength;
+			int amount = Math.min(length - position,
+					MailMessage.maxContentsLength - header);
+
+			byte[] contents = new byte[header + amount];
+			contents[0] = (byte) message;
+			Lib.bytesFromShort(contents, 1, (short) fragment);
+			if (fragment == 0)
+				Lib.bytesFromInt(contents, 3, length);
+			System.arraycopy(data, offset + position, contents, header, amount);
+
+			try {
+				postOffice.send(new MailMessage(dstLink, dstPort, srcLink,
+						srcPort, contents));
+			}
+			catch (MalformedPacketException e) {
+				Lib.assertNotReached();
+			}
+
+			position += amount;
+			fragment++;
+		} while (position < length);
+
+		sendLocks[srcPort].release();
+
+		return true;
+	}
+
+	/**
+	 * Receive the next message that arrives on a port, waiting if there is
+	 * none. If the message is longer than <i>length</i>, only its first
+	 * <i>length</i> bytes are stored, and the rest is discarded.
+	 *
+	 * @param port the port to receive on.
+	 * @param buffer the array to store the message in.
+	 * @param offset the first byte of <i>buffer</i> to store to.
+	 * @param length the most bytes to store.
+	 * @return the length of the message.
+	 */
+	public int receive(int port, byte[] buffer, int offset, int length) {
+		Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= buffer.length);
+
+		lock.acquire();
+
+		Port p = getPort(port);
+
+		int messageLength;
+		if (!p.complete.isEmpty()) {
+			Reassembly r = p.complete.removeFirst();
+			messageLength = r.length;
+
+			System.arraycopy(r.buffer, 0, buffer, offset, Math.min(
+					messageLength, length));
+			freeBuffer(r.buffer);
+		}
+		else {
+			Receiver receiver = new Receiver(buffer, offset, length);
+			p.waiting.add(receiver);
+
+			while (receiver.messageLength < 0)
+				receiver.done.sleep();
+
+			messageLength = receiver.messageLength;
+		}
+
+		lock.release();
+
+		return messageLength;
+	}
+
+	/**
+	 * Return the state of a port, starting a thread to receive fragments on
+	 * it the first time. The caller must hold <tt>lock</tt>.
+	 */
+	private Port getPort(int port) {
+		if (ports[port] == null) {
+			final Port p = new Port(port);
+			ports[port] = p;
+
+			new KThread(new Runnable() {
+				public void run() {
+					receiveLoop(p);
+				}
+			}).setName("message port " + port).fork();
+		}
+
+		return ports[port];
+	}
+
+	private void receiveLoop(Port p) {
+		MailMessage[] mail = new MailMessage[16];
+
+		while (true) {
+			int amount = postOffice.receive(p.number, mail, 0, mail.length);
+
+			lock.acquire();
+			for (int i = 0; i < amount; i++)
+				receiveFragment(p, mail[i]);
+			lock.release();
+		}
+	}
+
+	/**
+	 * Add a fragment to the message it belongs to. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private void receiveFragment(Port p, MailMessage mail) {
+		byte[] contents = mail.contents;
+		if (contents.length < headerLength)
+			return;
+
+		int message = contents[0] & 0xFF;
+		int fragment = Lib.bytesToUnsignedShort(contents, 1);
+		int source = mail.packet.srcLink * MailMessage.portLimit
+				+ mail.srcPort;
+
+		Reassembly r = p.partial.get(source);
+
+		int header;
+		if (fragment == 0) {
+			// whatever was left of the previous message was lost
+			if (r != null)
+				abandon(r);
+
+			if (contents.length < firstHeaderLength)
+				return;
+
+			int length = Lib.bytesToInt(contents, 3);
+			if (length < 0 || length > maxMessageLength)
+				return;
+
+			r = start(p, source, message, length);
+			if (r == null)
+				return;
+
+			header = firstHeaderLength;
+		}
+		else {
+			if (r == null)
+				return;
+
+			if (r.message != message || r.nextFragment != fragment) {
+				abandon(r);
+				return;
+			}
+
+			header = headerLength;
+		}
+
+		int amount = contents.length - header;
+		if (r.received + amount > r.length) {
+			abandon(r);
+			return;
+		}
+
+		if (r.receiver != null) {
+			Receiver receiver = r.receiver;
+			System.arraycopy(contents, header, receiver.buffer,
+					receiver.offset + r.received, amount);
+		}
+		else {
+			System.arraycopy(contents, header, r.buffer, r.received, amount);
+		}
+
+		r.received += amount;
+		r.nextFragment++;
+
+		if (r.received == r.length)
+			complete(r);
+	}
+
+	/**
+	 * Start putting together a message, in the buffer of a waiting receiver
+	 * if one can hold it, or else in a pool buffer. The caller must hold
+	 * <tt>lock</tt>.
+	 *
+	 * @return the new reassembly, or <tt>null</tt> if there was no buffer for
+	 * it.
+	 */
+	private Reassembly start(Port p, int source, int message, int length) {
+		Reassembly r = new Reassembly(p, source, message, length);
+
+		if (!p.waiting.isEmpty() && p.waiting.getFirst().length >= length) {
+			r.receiver = p.waiting.removeFirst();
+		}
+		else {
+			r.buffer = allocateBuffer(length);
+			if (r.buffer == null) {
+				Lib.debug(dbgMessage, "no buffer for a " + length
+						+ " byte message on port " + p.number);
+				return null;
+			}
+
+			pooled.add(r);
+		}
+
+		p.partial.put(source, r);
+
+		return r;
+	}
+
+	/**
+	 * Hand a message that has been put together to a receiver, or keep it
+	 * until there is one. The caller must hold <tt>lock</tt>.
+	 */
+	private void complete(Reassembly r) {
+		Port p = r.port;
+		p.partial.remove(r.source);
+
+		Receiver receiver = r.receiver;
+		if (receiver == null) {
+			pooled.remove(r);
+
+			if (p.waiting.isEmpty()) {
+				p.complete.add(r);
+				return;
+			}
+
+			receiver = p.waiting.removeFirst();
+			System.arraycopy(r.buffer, 0, receiver.buffer, receiver.offset,
+					Math.min(r.length, receiver.length));
+			freeBuffer(r.buffer);
+		}
+
+		receiver.messageLength = r.length;
+		receiver.done.wake();
+	}
+
+	/**
+	 * Drop a message that will not be completed. A receiver it was being
+	 * copied to goes back to waiting, ahead of the others. The caller must
+	 * hold <tt>lock</tt>.
+	 */
+	private void abandon(Reassembly r) {
+		Lib.debug(dbgMessage, "dropping message " + r.message + " on port "
+				+ r.port.number + " after " + r.received + " of " + r.length
+				+ " bytes");
+
+		r.port.partial.remove(r.source);
+
+		if (r.receiver != null) {
+			r.port.waiting.addFirst(r.receiver);
+		}
+		else {
+			pooled.remove(r);
+			freeBuffer(r.buffer);
+		}
+	}
+
+	/**
+	 * Take a buffer of at least <i>length</i> bytes from the pool. The caller
+	 * must hold <tt>lock</tt>.
+	 *
+	 * @return the buffer, or <tt>null</tt> if the pool cannot provide one.
+	 */
+	private byte[] allocateBuffer(int length) {
+		if (length == 0)
+			return emptyBuffer;
+
+		if (length > maxPoolBytes)
+			return null;
+
+		// reuse the smallest free buffer that is big enough
+		byte[] best = null;
+		for (byte[] buffer : freeBuffers) {
+			if (buffer.length >= length
+					&& (best == null || buffer.length < best.length))
+				best = buffer;
+		}
+
+		if (best != null) {
+			freeBuffers.remove(best);
+			return best;
+		}
+
+		// make room by forgetting free buffers, then by dropping the oldest
+		// incomplete messages
+		while (poolBytes + length > maxPoolBytes) {
+			if (!freeBuffers.isEmpty())
+				poolBytes -= freeBuffers.removeFirst().length;
+			else if (!pooled.isEmpty())
+				abandon(pooled.getFirst());
+			else
+				return null;
+		}
+
+		poolBytes += length;
+
+		return new byte[length];
+	}
+
+	private void freeBuffer(byte[] buffer) {
+		if (buffer.length > 0)
+			freeBuffers.add(buffer);
+	}
+
+	/** The state of a port that has been received on. */
+	private static class Port {
+		Port(int number) {
+			this.number = number;
+		}
+
+		int number;
+
+		/** Messages being put together, by source link and port. */
+		HashMap<Integer, Reassembly> partial = new HashMap<Integer, Reassembly>();
+
+		/** Messages put together in pool buffers, waiting for a receiver. */
+		LinkedList<Reassembly> complete = new LinkedList<Reassembly>();
+
+		/** Receivers waiting for a message, in order. */
+		LinkedList<Receiver> waiting = new LinkedList<Receiver>();
+	}
+
+	/** A message being put together, or waiting to be received. */
+	private static class Reassembly {
+		Reassembly(Port port, int source, int message, int length) {
+			this.port = port;
+			this.source = source;
+			this.message = message;
+			this.length = length;
+		}
+
+		Port port;
+
+		int source, message, length;
+
+		int received = 0, nextFragment = 0;
+
+		/** The receiver the message is copied to, if any. */
+		Receiver receiver = null;
+
+		/** Otherwise, the pool buffer the message is copied to. */
+		byte[] buffer = null;
+	}
+
+	/** A thread waiting in <tt>receive()</tt>. */
+	private class Receiver {
+		Receiver(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+
+			done = new Condition(lock);
+		}
+
+		byte[] buffer;
+
+		int offset, length;
+
+		/** The length of the message received, or -1 until there is one. */
+		int messageLength = -1;
+
+		Condition done;
+	}
+
+	private PostOffice postOffice;
+
+	/** Protects everything but sending. */
+	private Lock lock;
+
+	private Port[] ports;
+
+	/** Held while sending the fragments of a message, by source port. */
+	private Lock[] sendLocks;
+
+	/** The number of the next message sent from each port. */
+	private int[] nextMessage;
+
+	/** Incomplete messages in pool buffers, oldest first. */
+	private LinkedList<Reassembly> pooled = new LinkedList<Reassembly>();
+
+	/** Pool buffers not in use. */
+	private LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+
+	/** The bytes in all pool buffers, in use or not. */
+	private int poolBytes = 0;
+
+	private int maxPoolBytes;
+
+	private static final byte[] emptyBuffer = new byte[0];
+
+	/** The fragment header: message number and fragment number. */
+	private static final int headerLength = 3;
+
+	/** The header of a first fragment, which adds the message length. */
+	private static final int firstHeaderLength = 7;
+
+	/** The longest message that can be sent. */
+	public static final int maxMessageLength = MailMessage.maxContentsLength
+			- firstHeaderLength + 0xFFFF
+			* (MailMessage.maxContentsLength - headerLength);
+
+	private static final char dbgMessage = 'n';
+}
@@ -24,6 +24,8 @@ public class NetKernel extends VMKernel {
 		super.initialize(args);
 
 		postOffice = new PostOffice();
+		transport = new Transport(postOffice);
+		messageService = new MessageService(postOffice);
 	}
 
 	/**
@@ -54,6 +56,261 @@ public class NetKernel extends VMKernel {
 		// if we're 0 or 1, ping the opposite
 		if (local <= 1)
 			ping(1 - local);
+
+		//transportBenchmark();
+		//postOfficeBenchmark(16);
+		//postOfficeBenchmark(MailMessage.portLimit - 5);
+		//messageBenchmark(1024);
+		//switchBenchmark(64);
+	}
+
+	/**
+	 * Send 16KB from this machine to itself as messages of the specified
+	 * size, and print how long it took. Assumes that the network is reliable.
+	 *
+	 * @param size the length of each message.
+	 */
+	private void messageBenchmark(final int size) {
+		final int port = 3, total = 16 * 1024;
+		final int numMessages = total / size;
+		final Semaphore done = new Semaphore(0);
+
+		new KThread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[size];
+				for (int i = 0; i < numMessages; i++) {
+					int length = messageService.receive(port, buffer, 0, size);
+					Lib.assertTrue(length == size && buffer[size - 1] == (byte) i);
+				}
+				done.V();
+			}
+		}).setName("message receiver").fork();
+
+		// let the receiver start waiting
+		KThread.yield();
+
+		long startTime = Machine.timer().getTime();
+		long startMillis = System.currentTimeMillis();
+
+		int link = Machine.networkLink().getLinkAddress();
+		byte[] data = new byte[size];
+		for (int i = 0; i < numMessages; i++) {
+			data[size - 1] = (byte) i;
+			Lib.assertTrue(messageService.send(link, port, port, data, 0, size));
+		}
+		done.P();
+
+		long ticks = Machine.timer().getTime() - startTime;
+
+		System.out.println("messages: " + numMessages + " of " + size
+				+ " bytes in " + ticks + " ticks (" + (total * 1000L / ticks)
+				+ " bytes per 1000 ticks), "
+				+ (System.currentTimeMillis() - startMillis) + " ms");
+	}
+
+	/**
+	 * Send mail from many threads at once to receiving threads on
+	 * <i>numPorts</i> ports of this machine, from port 4 upward, and print how
+	 * fast it was delivered. Each sending thread sends to every sixteenth
+	 * receiving port in turn. Assumes that the network is reliable.
+	 *
+	 * @param numPorts the number of receiving ports. Ports 0 to 3 are used by
+	 * the other network tests, and <tt>Transport.connect()</tt> takes local
+	 * ports from the highest one down, so at most
+	 * <tt>MailMessage.portLimit - 5</tt>.
+	 */
+	private void postOfficeBenchmark(final int numPorts) {
+		final int numSenders = Math.min(16, numPorts);
+		final int numMessages = Math.max(1024 / numPorts, 1);
+		final int firstPort = 4;
+		Lib.assertTrue(numPorts > 0
+				&& firstPort + numPorts < MailMessage.portLimit);
+
+		// join() wakes for any thread that finishes, so count receivers
+		final Semaphore received = new Semaphore(0);
+
+		for (int i = 0; i < numPorts; i++) {
+			final int port = firstPort + i;
+			new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numMessages; j++)
+						postOffice.receive(port);
+					received.V();
+				}
+			}).setName("mail receiver " + port).fork();
+		}
+
+		long startTime = Machine.timer().getTime();
+		long startMillis = System.currentTimeMillis();
+
+		for (int i = 0; i < numSenders; i++) {
+			final int sender = i;
+			new KThread(new Runnable() {
+				public void run() {
+					int link = Machine.networkLink().getLinkAddress();
+					for (int j = 0; j < numMessages; j++) {
+						for (int k = sender; k < numPorts; k += numSenders) {
+							try {
+								postOffice.send(new MailMessage(link,
+										firstPort + k, link, sender,
+										new byte[MailMessage.maxContentsLength]));
+							}
+							catch (MalformedPacketException e) {
+								Lib.assertNotReached();
+							}
+						}
+					}
+				}
+			}).setName("mail sender " + i).fork();
+		}
+
+		for (int i = 0; i < numPorts; i++)
+			received.P();
+
+		long ticks = Machine.timer().getTime() - startTime;
+		long millis = Math.max(System.currentTimeMillis() - startMillis, 1);
+		int packets = numPorts * numMessages;
+
+		System.out.println("post office: " + packets + " packets to "
+				+ numPorts + " ports in " + ticks + " ticks ("
+				+ (packets * 1000000L / ticks) + " per million ticks), "
+				+ millis + " ms (" + (packets * 1000L / millis)
+				+ " per second)");
+	}
+
+	/**
+	 * Connect <i>numNodes</i> machines through the loopback switch, this one
+	 * and others attached with <tt>NetworkLink.attachLink()</tt>, each with
+	 * its own post office, and have every machine send mail to every other
+	 * one at once. Print how fast it was delivered. Requires the
+	 * <tt>loopback</tt> network medium and a reliable network. The attached
+	 * machines stay on the switch, so this can only be run once.
+	 *
+	 * @param numNodes the number of machines, at most
+	 * <tt>Packet.linkAddressLimit</tt>.
+	 */
+	private void switchBenchmark(final int numNodes) {
+		final int port = 4, rounds = 4;
+		final int perNode = rounds * (numNodes - 1);
+		Lib.assertTrue(numNodes > 1 && numNodes <= Packet.linkAddressLimit);
+
+		final PostOffice[] nodes = new PostOffice[numNodes];
+		nodes[0] = postOffice;
+		for (int i = 1; i < numNodes; i++) {
+			NetworkLink link = Machine.networkLink().attachLink();
+			Lib.assertTrue(link != null);
+			nodes[i] = new PostOffice(link);
+		}
+
+		final Semaphore received = new Semaphore(0);
+
+		for (int i = 0; i < numNodes; i++) {
+			final PostOffice node = nodes[i];
+			new KThread(new Runnable() {
+				public void run() {
+					MailMessage[] mail = new MailMessage[16];
+					for (int j = 0; j < perNode;)
+						j += node.receive(port, mail, 0, Math.min(mail.length,
+								perNode - j));
+					received.V();
+				}
+			}).setName("node receiver " + i).fork();
+		}
+
+		long startTime = Machine.timer().getTime();
+		long startMillis = System.currentTimeMillis();
+
+		for (int i = 0; i < numNodes; i++) {
+			final int index = i;
+			new KThread(new Runnable() {
+				public void run() {
+					PostOffice node = nodes[index];
+					int link = node.getLinkAddress();
+					for (int j = 0; j < rounds; j++) {
+						for (int k = 1; k < numNodes; k++) {
+							PostOffice dst = nodes[(index + k) % numNodes];
+							try {
+								node.send(new MailMessage(dst.getLinkAddress(),
+										port, link, port,
+										new byte[MailMessage.maxContentsLength]));
+							}
+							catch (MalformedPacketException e) {
+								Lib.assertNotReached();
+							}
+						}
+					}
+				}
+			}).setName("node sender " + i).fork();
+		}
+
+		for (int i = 0; i < numNodes; i++)
+			received.P();
+
+		long ticks = Machine.timer().getTime() - startTime;
+		long millis = Math.max(System.currentTimeMillis() - startMillis, 1);
+		int packets = numNodes * perNode;
+
+		System.out.println("switch: " + packets + " packets between "
+				+ numNodes + " nodes in " + ticks + " ticks ("
+				+ (packets * 1000000L / ticks) + " per million ticks), "
+				+ millis + " ms (" + (packets * 1000L / millis)
+				+ " per second)");
+	}
+
+	/**
+	 * Send data over a transport connection from this machine to itself,
+	 * and print how long it took. Every data segment and its acknowledgment
+	 * cross the same link, so the link can carry at most
+	 * <tt>Segment.maxDataLength</tt> bytes every <tt>2 * Stats.NetworkTime</tt>
+	 * ticks.
+	 */
+	private void transportBenchmark() {
+		final int port = 2, length = 4096;
+		final int[] received = new int[1];
+		final Semaphore done = new Semaphore(0);
+
+		KThread server = new KThread(new Runnable() {
+			public void run() {
+				Connection connection;
+				while ((connection = transport.accept(port)) == null)
+					ThreadedKernel.alarm.waitUntil(100);
+
+				byte[] buf = new byte[length];
+				while (received[0] < length) {
+					int amount = connection.read(buf, received[0], length
+							- received[0]);
+					if (amount == -1)
+						break;
+					if (amount == 0)
+						ThreadedKernel.alarm.waitUntil(100);
+					received[0] += amount;
+				}
+
+				connection.close();
+				done.V();
+			}
+		}).setName("transport server");
+		server.fork();
+
+		long startTime = Machine.timer().getTime();
+		long startMillis = System.currentTimeMillis();
+
+		Connection connection = transport.connect(Machine.networkLink()
+				.getLinkAddress(), port);
+		Lib.assertTrue(connection != null);
+
+		byte[] data = new byte[length];
+		Lib.assertTrue(connection.write(data, 0, length) == length);
+		done.P();
+		connection.close();
+
+		long ticks = Machine.timer().getTime() - startTime;
+
+		System.out.println("transport: " + received[0] + " bytes in " + ticks
+				+ " ticks (" + (received[0] * 1000L / ticks)
+				+ " bytes per 1000 ticks, link limit "
+				+ (Segment.maxDataLength * 1000 / (2 * Stats.NetworkTime))
+				+ "), " + (System.currentTimeMillis() - startMillis) + " ms");
 	}
 
 	private void ping(int dstLink) {
@@ -118,6 +375,15 @@ public class NetKernel extends VMKernel {
 
 	private PostOffice postOffice;
 
+	/**
+	 * The reliable transport used by <tt>connect()</tt> and
+	 * <tt>accept()</tt>.
+	 */
+	public static Transport transport;
+
+	/** The service sending messages larger than a packet. */
+	public static MessageService messageService;
+
 	// dummy variables to make javac smarter
 	private static NetProcess dummy1 = null;
 }
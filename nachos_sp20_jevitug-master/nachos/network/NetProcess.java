@@ -46,8 +46,64 @@ public class NetProcess extends VMProcess {
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
+		case syscallConnect:
+			return handleConnect(a0, a1);
+		case syscallAccept:
+			return handleAccept(a0);
 		default:
 			return super.handleSyscall(syscall, a0, a1, a2, a3);
 		}
 	}
+
+	/**
+	 * Handle the connect() system call. Waits until the other end accepts the
+	 * connection, and returns a file descriptor for it, or -1.
+	 */
+	private int handleConnect(int host, int port) {
+		int fd = freeDescriptor();
+		if (fd == -1) {
+			Lib.debug(dbgNet, "All file descriptors currently in use");
+			return -1;
+		}
+
+		Connection connection = NetKernel.transport.connect(host, port);
+		if (connection == null) {
+			Lib.debug(dbgNet, "Unable to connect to " + host + ":" + port);
+			return -1;
+		}
+
+		fileDescrTable[fd] = connection;
+		return fd;
+	}
+
+	/**
+	 * Handle the accept() system call. Does not wait for a connection
+	 * request; returns a file descriptor for the connection, or -1 if no
+	 * request is waiting.
+	 */
+	private int handleAccept(int port) {
+		int fd = freeDescriptor();
+		if (fd == -1) {
+			Lib.debug(dbgNet, "All file descriptors currently in use");
+			return -1;
+		}
+
+		Connection connection = NetKernel.transport.accept(port);
+		if (connection == null)
+			return -1;
+
+		fileDescrTable[fd] = connection;
+		return fd;
+	}
+
+	private int freeDescriptor() {
+		for (int i = 2; i < fileDescrTable.length; i++) {
+			if (fileDescrTable[i] == null)
+				return i;
+		}
+
+		return -1;
+	}
+
+	private static final char dbgNet = 'n';
 }
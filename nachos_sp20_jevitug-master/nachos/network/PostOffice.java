@@ -10,25 +10,51 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  * 
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot be
- * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * Each queue is a bounded ring of messages (a mailbox) that is only used
+ * with interrupts disabled, rather than under a lock, so the receive
+ * interrupt handler places messages in the mailboxes itself. The network link
+ * raises a single receive interrupt for all the packets that arrived since
+ * the last one, and the handler delivers all of them in one pass, waking at
+ * most one waiting thread per message. A mailbox holds
+ * <tt>PostOffice.mailboxSize</tt> messages (64 by default); messages that
+ * arrive for a full mailbox are lost, like any other lost packet.
+ *
+ * <p>
+ * Outgoing messages are kept on a bounded transmit ring
+ * (<tt>PostOffice.transmitRingSize</tt> messages, 64 by default), and the
+ * send interrupt handler moves them from the ring to the network link as
+ * transmit slots become free. A sender only waits when the ring is full; it
+ * never waits for its message, or anyone else's, to be sent.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-	 * Register the interrupt handlers with the network hardware and start the
-	 * "postal worker" thread.
+	 * Allocate a new post office for this machine's network link.
 	 */
 	public PostOffice() {
-		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		this(Machine.networkLink());
+	}
+
+	/**
+	 * Allocate a new post office, with an empty mailbox for every port, and
+	 * register the interrupt handlers with the specified network link.
+	 *
+	 * @param link the network link to send and receive mail with.
+	 */
+	public PostOffice(NetworkLink link) {
+		this.link = link;
 
-		queues = new SynchList[MailMessage.portLimit];
-		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+		transmitRing = new MailMessage[Config.getInteger(
+				"PostOffice.transmitRingSize", 64)];
+		Lib.assertTrue(transmitRing.length > 0);
+		transmitSpace = new Semaphore(transmitRing.length);
+		linkSlotsFree = link.getTransmitSlots();
+
+		int mailboxSize = Config.getInteger("PostOffice.mailboxSize", 64);
+		Lib.assertTrue(mailboxSize > 0);
+
+		mailboxes = new Mailbox[MailMessage.portLimit];
+		for (int i = 0; i < mailboxes.length; i++)
+			mailboxes[i] = new Mailbox(mailboxSize);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -40,15 +66,16 @@ public class PostOffice {
 				sendInterrupt();
 			}
 		};
-		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
-
-		KThread t = new KThread(new Runnable() {
-			public void run() {
-				postalDelivery();
-			}
-		});
+		link.setInterruptHandlers(receiveHandler, sendHandler);
+	}
 
-		t.fork();
+	/**
+	 * Return the link address of the network link this post office uses.
+	 *
+	 * @return the link address.
+	 */
+	public int getLinkAddress() {
+		return link.getLinkAddress();
 	}
 
 	/**
@@ -59,27 +86,91 @@ public class PostOffice {
 	 * @return the message received.
 	 */
 	public MailMessage receive(int port) {
-		Lib.assertTrue(port >= 0 && port < queues.length);
+		MailMessage[] mail = new MailMessage[1];
+		while (receive(port, mail, 0, 1) == 0)
+			;
+
+		return mail[0];
+	}
+
+	/**
+	 * Retrieve as many of the messages waiting on the specified port as fit,
+	 * waiting if there are none.
+	 * 
+	 * @param port the port on which to wait for messages.
+	 * @param mail the array to store the messages received in.
+	 * @param offset the first element of <i>mail</i> to store to.
+	 * @param length the most messages to retrieve.
+	 * 
+	 * @return the number of messages received, which is 0 only if
+	 * <tt>wakeReceivers()</tt> was called for the port while waiting.
+	 */
+	public int receive(int port, MailMessage[] mail, int offset, int length) {
+		Lib.assertTrue(port >= 0 && port < mailboxes.length);
+		Lib.assertTrue(offset >= 0 && length > 0
+				&& offset + length <= mail.length);
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		Mailbox mailbox = mailboxes[port];
 
-		if (Lib.test(dbgNet))
-			System.out.println("got mail on port " + port + ": " + mail);
+		boolean intStatus = Machine.interrupt().disable();
+
+		int wakeups = mailbox.wakeups;
+		while (mailbox.count == 0) {
+			if (mailbox.wakeups != wakeups) {
+				Machine.interrupt().restore(intStatus);
+				return 0;
+			}
+
+			mailbox.waiting.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		int amount = Math.min(length, mailbox.count);
+		for (int i = offset; i < offset + amount; i++)
+			mail[i] = mailbox.remove();
+
+		Machine.interrupt().restore(intStatus);
 
-		return mail;
+		if (Lib.test(dbgNet)) {
+			for (int i = offset; i < offset + amount; i++)
+				System.out.println("got mail on port " + port + ": " + mail[i]);
+		}
+
+		return amount;
 	}
 
 	/**
-	 * Wait for incoming messages, and then put them in the correct mailbox.
+	 * Wake every thread waiting in <tt>receive()</tt> on the specified port,
+	 * without giving them any mail. Threads waiting for an array of messages
+	 * return 0; threads waiting for a single message go back to waiting.
+	 * 
+	 * @param port the port whose receivers to wake.
 	 */
-	private void postalDelivery() {
-		while (true) {
-			messageReceived.P();
+	public void wakeReceivers(int port) {
+		Lib.assertTrue(port >= 0 && port < mailboxes.length);
+
+		Mailbox mailbox = mailboxes[port];
+
+		boolean intStatus = Machine.interrupt().disable();
 
-			Packet p = Machine.networkLink().receive();
+		mailbox.wakeups++;
 
+		KThread thread;
+		while ((thread = mailbox.waiting.nextThread()) != null)
+			thread.ready();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Called when packets have arrived and can be dequeued from the network
+	 * link. Puts every one of them in the correct mailbox.
+	 */
+	private void receiveInterrupt() {
+		Packet p;
+		while ((p = link.receive()) != null) {
 			MailMessage mail;
 
 			try {
@@ -89,36 +180,43 @@ public class PostOffice {
 				continue;
 			}
 
+			Mailbox mailbox = mailboxes[mail.dstPort];
+			if (mailbox.count == mailbox.mail.length) {
+				Lib.debug(dbgNet, "mailbox full, dropping mail to port "
+						+ mail.dstPort);
+				continue;
+			}
+
 			if (Lib.test(dbgNet))
 				System.out.println("delivering mail to port " + mail.dstPort
 						+ ": " + mail);
 
-			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
-		}
-	}
+			mailbox.add(mail);
 
-	/**
-	 * Called when a packet has arrived and can be dequeued from the network
-	 * link.
-	 */
-	private void receiveInterrupt() {
-		messageReceived.V();
+			KThread thread = mailbox.waiting.nextThread();
+			if (thread != null)
+				thread.ready();
+		}
 	}
 
 	/**
-	 * Send a message to a mailbox on a remote machine.
+	 * Send a message to a mailbox on a remote machine. Waits only if the
+	 * transmit ring is full; messages are sent in the order they are given.
 	 */
 	public void send(MailMessage mail) {
 		if (Lib.test(dbgNet))
 			System.out.println("sending mail: " + mail);
 
-		sendLock.acquire();
+		transmitSpace.P();
+
+		boolean intStatus = Machine.interrupt().disable();
 
-		Machine.networkLink().send(mail.packet);
-		messageSent.P();
+		int slot = (firstTransmit + numTransmit) % transmitRing.length;
+		transmitRing[slot] = mail;
+		numTransmit++;
+		fillLink();
 
-		sendLock.release();
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -127,16 +225,74 @@ public class PostOffice {
 	 * dropped.
 	 */
 	private void sendInterrupt() {
-		messageSent.V();
+		linkSlotsFree++;
+		fillLink();
 	}
 
-	private SynchList[] queues;
+	/**
+	 * Move messages from the transmit ring to the network link while it has
+	 * free transmit slots. Interrupts must be disabled.
+	 */
+	private void fillLink() {
+		while (numTransmit > 0 && linkSlotsFree > 0) {
+			MailMessage mail = transmitRing[firstTransmit];
+			transmitRing[firstTransmit] = null;
+			firstTransmit = (firstTransmit + 1) % transmitRing.length;
+			numTransmit--;
+
+			linkSlotsFree--;
+			link.send(mail.packet);
+
+			transmitSpace.V();
+		}
+	}
+
+	/**
+	 * A bounded ring of messages received on a port. Only used with
+	 * interrupts disabled.
+	 */
+	private static class Mailbox {
+		Mailbox(int size) {
+			mail = new MailMessage[size];
+		}
+
+		void add(MailMessage m) {
+			mail[(first + count) % mail.length] = m;
+			count++;
+		}
+
+		MailMessage remove() {
+			MailMessage m = mail[first];
+			mail[first] = null;
+			first = (first + 1) % mail.length;
+			count--;
+
+			return m;
+		}
+
+		MailMessage[] mail;
+
+		int first = 0, count = 0;
+
+		/** Incremented by <tt>wakeReceivers()</tt>. */
+		int wakeups = 0;
+
+		/** Threads waiting in <tt>receive()</tt> for this mailbox. */
+		ThreadQueue waiting = ThreadedKernel.scheduler.newThreadQueue(false);
+	}
+
+	private NetworkLink link;
+
+	private Mailbox[] mailboxes;
+
+	/** Messages waiting for the network link, starting at firstTransmit. */
+	private MailMessage[] transmitRing;
 
-	private Semaphore messageReceived; // V'd when a message can be dequeued
+	private int firstTransmit = 0, numTransmit = 0;
 
-	private Semaphore messageSent; // V'd when a message can be queued
+	private Semaphore transmitSpace; // V'd when a message leaves the ring
 
-	private Lock sendLock;
+	private int linkSlotsFree; // transmit slots the network link has free
 
 	private static final char dbgNet = 'n';
 }
@@ -0,0 +1,203 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+/**
+ * A transport segment. Includes a mail message, a transport header, and the
+ * data carried for a connection.
+ *
+ * <p>
+ * Sequence numbers count segments, not bytes. Every segment that carries
+ * data or a <tt>FIN</tt> takes the next sequence number of its direction of
+ * the connection; other segments only carry acknowledgments. Only the low 16
+ * bits of a sequence number are sent, and the receiver recovers the rest from
+ * the numbers it expects (see <tt>unwrap()</tt>).
+ *
+ * @see nachos.network.MailMessage
+ * @see nachos.network.Transport
+ */
+public class Segment {
+	/**
+	 * Allocate a new segment to be sent, using the specified parameters.
+	 *
+	 * @param dstLink the destination link address.
+	 * @param dstPort the destination port.
+	 * @param srcLink the source link address.
+	 * @param srcPort the source port.
+	 * @param flags the <tt>SYN</tt>, <tt>ACK</tt> and <tt>FIN</tt> flags.
+	 * @param window the number of segments the sender can still receive.
+	 * @param seq the sequence number of this segment.
+	 * @param ack the next sequence number the sender expects to receive.
+	 * @param sack the segments after <i>ack</i> the sender has received.
+	 * @param data the data carried by this segment.
+	 */
+	public Segment(int dstLink, int dstPort, int srcLink, int srcPort,
+			int flags, int window, int seq, int ack, int sack, byte[] data)
+			throws MalformedPacketException {
+		// make sure the parameters are valid
+		if (window < 0 || window > maxWindow || data.length > maxDataLength)
+			throw new MalformedPacketException();
+
+		this.flags = flags;
+		this.window = window;
+		this.seq = seq & 0xFFFF;
+		this.ack = ack & 0xFFFF;
+		this.sack = sack & 0xFFFF;
+		this.data = data;
+
+		byte[] contents = new byte[headerLength + data.length];
+
+		contents[0] = (byte) flags;
+		contents[1] = (byte) window;
+		Lib.bytesFromShort(contents, 2, (short) seq);
+		Lib.bytesFromShort(contents, 4, (short) ack);
+		Lib.bytesFromShort(contents, 6, (short) sack);
+
+		System.arraycopy(data, 0, contents, headerLength, data.length);
+
+		mail = new MailMessage(dstLink, dstPort, srcLink, srcPort, contents);
+	}
+
+	/**
+	 * Allocate a new segment using the specified mail message from the
+	 * network.
+	 *
+	 * @param mail the mail message containing the segment.
+	 */
+	public Segment(MailMessage mail) throws MalformedPacketException {
+		this.mail = mail;
+
+		// make sure we have a valid header
+		if (mail.contents.length < headerLength
+				|| (mail.contents[0] & ~(SYN | ACK | FIN)) != 0
+				|| mail.contents[1] < 0 || mail.contents[1] > maxWindow)
+			throw new MalformedPacketException();
+
+		flags = mail.contents[0];
+		window = mail.contents[1];
+		seq = Lib.bytesToUnsignedShort(mail.contents, 2);
+		ack = Lib.bytesToUnsignedShort(mail.contents, 4);
+		sack = Lib.bytesToUnsignedShort(mail.contents, 6);
+
+		data = new byte[mail.contents.length - headerLength];
+		System.arraycopy(mail.contents, headerLength, data, 0, data.length);
+	}
+
+	/**
+	 * Test whether this segment takes a sequence number, because it carries
+	 * data or a <tt>FIN</tt>.
+	 *
+	 * @return <tt>true</tt> if the receiver must acknowledge this segment.
+	 */
+	public boolean isSequenced() {
+		return data.length > 0 || (flags & FIN) != 0;
+	}
+
+	/**
+	 * Return the full sequence number whose low 16 bits are <i>wire</i>,
+	 * choosing the one closest to <i>near</i>.
+	 *
+	 * @param wire a sequence number as sent in a segment.
+	 * @param near a sequence number the receiver expects.
+	 * @return the full sequence number.
+	 */
+	public static int unwrap(int wire, int near) {
+		return near + (short) (wire - near);
+	}
+
+	/**
+	 * Return a string representation of the segment headers.
+	 */
+	public String toString() {
+		return mail + ((flags & SYN) != 0 ? " SYN" : "")
+				+ ((flags & FIN) != 0 ? " FIN" : "")
+				+ ((flags & ACK) != 0 ? " ACK " + ack + "/" + window + " sack "
+						+ Integer.toHexString(sack) : "") + " seq " + seq
+				+ ", " + data.length + " data bytes";
+	}
+
+	/** This segment, as a mail message. */
+	public MailMessage mail;
+
+	/** The flags of this segment. */
+	public int flags;
+
+	/** The number of segments after <tt>ack</tt> the sender can receive. */
+	public int window;
+
+	/** The low 16 bits of the sequence number of this segment. */
+	public int seq;
+
+	/** The low 16 bits of the next sequence number the sender expects. */
+	public int ack;
+
+	/**
+	 * The segments the sender has received out of order: bit <i>i</i> is set
+	 * if sequence number <tt>ack + 1 + </tt><i>i</i> has arrived.
+	 */
+	public int sack;
+
+	/** The data carried by this segment, excluding the headers. */
+	public byte[] data;
+
+	/** Flag opening a connection. */
+	public static final int SYN = 0x01;
+
+	/**
+	 * Flag set when <tt>ack</tt>, <tt>sack</tt> and <tt>window</tt> are
+	 * valid.
+	 */
+	public static final int ACK = 0x02;
+
+	/** Flag closing the sender's direction of a connection. */
+	public static final int FIN = 0x04;
+
+	/**
+	 * The number of bytes in a transport header. The header is formatted as
+	 * follows:
+	 *
+	 * <table>
+	 * <tr>
+	 * <td>offset</td>
+	 * <td>size</td>
+	 * <td>value</td>
+	 * </tr>
+	 * <tr>
+	 * <td>0</td>
+	 * <td>1</td>
+	 * <td>flags</td>
+	 * </tr>
+	 * <tr>
+	 * <td>1</td>
+	 * <td>1</td>
+	 * <td>receive window</td>
+	 * </tr>
+	 * <tr>
+	 * <td>2</td>
+	 * <td>2</td>
+	 * <td>sequence number</td>
+	 * </tr>
+	 * <tr>
+	 * <td>4</td>
+	 * <td>2</td>
+	 * <td>acknowledgment number</td>
+	 * </tr>
+	 * <tr>
+	 * <td>6</td>
+	 * <td>2</td>
+	 * <td>selective acknowledgment bits</td>
+	 * </tr>
+	 * </table>
+	 */
+	public static final int headerLength = 8;
+
+	/** Maximum data that can be included in a single segment. */
+	public static final int maxDataLength = MailMessage.maxContentsLength
+			- headerLength;
+
+	/**
+	 * The largest window a receiver can advertise: the segment it expects
+	 * plus the 16 that fit in the selective acknowledgment bits.
+	 */
+	public static final int maxWindow = 17;
+}
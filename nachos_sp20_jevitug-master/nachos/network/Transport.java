@@ -0,0 +1,374 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A reliable, connection-oriented transport built on a <tt>PostOffice</tt>.
+ * Connections are opened with <tt>connect()</tt> and <tt>accept()</tt>, and
+ * carry segments between a port on each machine (see <tt>Connection</tt>).
+ *
+ * <p>
+ * The transport uses three kinds of threads. For every port in use, a
+ * receiving thread takes all the mail waiting for it from the post office at
+ * once and hands each segment to its connection. A single sending thread
+ * passes queued segments to the post office in order, so that no other
+ * thread waits for the network link. A timer thread, which sleeps with the
+ * <tt>Alarm</tt> while any connection has segments in flight, sends again
+ * those whose acknowledgment is overdue.
+ *
+ * <p>
+ * The window, the send queue and the retransmission timeout are set by the
+ * <tt>Transport.windowPackets</tt>, <tt>Transport.sendQueuePackets</tt> and
+ * <tt>Transport.retransmitTicks</tt> configuration keys.
+ */
+public class Transport {
+	/**
+	 * Allocate a new transport, and start its sending and timer threads.
+	 *
+	 * @param postOffice the post office to send and receive mail with.
+	 */
+	public Transport(PostOffice postOffice) {
+		this.postOffice = postOffice;
+
+		linkAddress = postOffice.getLinkAddress();
+
+		windowSize = Config.getInteger("Transport.windowPackets", 16);
+		Lib.assertTrue(windowSize > 0 && windowSize <= Segment.maxWindow);
+		sendQueueLimit = Config.getInteger("Transport.sendQueuePackets", 32);
+		initialRTO = Config.getInteger("Transport.retransmitTicks", 2000);
+
+		lock = new Lock();
+		outboxNotEmpty = new Condition(lock);
+		timerNeeded = new Condition(lock);
+
+		connections = new HashMap<Integer, Connection>();
+		pending = new ArrayList<LinkedList<Connection>>(MailMessage.portLimit);
+		for (int i = 0; i < MailMessage.portLimit; i++)
+			pending.add(new LinkedList<Connection>());
+		listening = new boolean[MailMessage.portLimit];
+		receivers = new KThread[MailMessage.portLimit];
+		portUsers = new int[MailMessage.portLimit];
+
+		new KThread(new Runnable() {
+			public void run() {
+				sendLoop();
+			}
+		}).setName("transport sender").fork();
+
+		new KThread(new Runnable() {
+			public void run() {
+				timerLoop();
+			}
+		}).setName("transport timer").fork();
+	}
+
+	/**
+	 * Open a connection to a port on another machine, from an unused local
+	 * port, and wait until the other end accepts it.
+	 *
+	 * @param link the link address of the other machine.
+	 * @param port the port on the other machine.
+	 * @return the connection, or <tt>null</tt> if it could not be opened.
+	 */
+	public Connection connect(int link, int port) {
+		if (link < 0 || link >= Packet.linkAddressLimit || port < 0
+				|| port >= MailMessage.portLimit)
+			return null;
+
+		lock.acquire();
+
+		// local ports are handed out from the top, away from well-known ones
+		int localPort = MailMessage.portLimit - 1;
+		while (localPort >= 0
+				&& (portUsers[localPort] > 0 || listening[localPort]))
+			localPort--;
+		if (localPort < 0) {
+			lock.release();
+			return null;
+		}
+
+		Connection connection = new Connection(this, localPort, link, port,
+				Connection.synSent);
+		add(connection);
+		startReceiving(localPort);
+
+		connection.sendSyn();
+		timerNeeded.wake();
+
+		boolean established = connection.waitEstablished();
+		if (!established)
+			remove(connection);
+
+		lock.release();
+
+		return established ? connection : null;
+	}
+
+	/**
+	 * Accept a connection request that has arrived for a local port. Does not
+	 * wait for one; the first call for a port starts listening on it.
+	 *
+	 * @param port the local port.
+	 * @return the connection, or <tt>null</tt> if no request is waiting.
+	 */
+	public Connection accept(int port) {
+		if (port < 0 || port >= MailMessage.portLimit)
+			return null;
+
+		lock.acquire();
+
+		listening[port] = true;
+		startReceiving(port);
+
+		Connection connection = pending.get(port).poll();
+		if (connection != null)
+			connection.sendSynAck();
+
+		lock.release();
+
+		return connection;
+	}
+
+	/**
+	 * Queue a segment to be sent. The caller must hold <tt>lock</tt>.
+	 *
+	 * @param segment the segment to send.
+	 */
+	void send(Segment segment) {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		if (Lib.test(dbgTransport))
+			System.out.println("sending segment: " + segment);
+
+		outbox.add(segment);
+		outboxNotEmpty.wake();
+
+		if (segment.isSequenced())
+			timerNeeded.wake();
+	}
+
+	/**
+	 * Forget a connection. The caller must hold <tt>lock</tt>.
+	 *
+	 * @param connection the connection.
+	 */
+	void remove(Connection connection) {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		if (connections.remove(key(connection.localPort,
+				connection.remoteLink, connection.remotePort)) != null) {
+			portUsers[connection.localPort]--;
+			stopReceiving(connection.localPort);
+		}
+	}
+
+	private void add(Connection connection) {
+		connections.put(key(connection.localPort, connection.remoteLink,
+				connection.remotePort), connection);
+		portUsers[connection.localPort]++;
+	}
+
+	private static int key(int localPort, int remoteLink, int remotePort) {
+		return (localPort * Packet.linkAddressLimit + remoteLink)
+				* MailMessage.portLimit + remotePort;
+	}
+
+	/**
+	 * Start a thread receiving segments on a port, if there is none yet. The
+	 * caller must hold <tt>lock</tt>.
+	 */
+	private void startReceiving(final int port) {
+		if (receivers[port] != null)
+			return;
+
+		receivers[port] = new KThread(new Runnable() {
+			public void run() {
+				receiveLoop(port);
+			}
+		});
+		receivers[port].setName("transport port " + port).fork();
+	}
+
+	/**
+	 * Stop receiving on a port once no connection uses it and it is not
+	 * listening, so that its mail is left for other users of the post office.
+	 * The caller must hold <tt>lock</tt>.
+	 */
+	private void stopReceiving(int port) {
+		if (receivers[port] == null || portUsers[port] > 0 || listening[port])
+			return;
+
+		receivers[port] = null;
+		postOffice.wakeReceivers(port);
+	}
+
+	private void receiveLoop(int port) {
+		MailMessage[] mail = new MailMessage[Segment.maxWindow];
+
+		while (true) {
+			// take every segment waiting, and deliver them under one lock
+			int amount = postOffice.receive(port, mail, 0, mail.length);
+
+			lock.acquire();
+			for (int i = 0; i < amount; i++) {
+				Segment segment;
+				try {
+					segment = new Segment(mail[i]);
+				}
+				catch (MalformedPacketException e) {
+					continue;
+				}
+
+				if (Lib.test(dbgTransport))
+					System.out.println("got segment: " + segment);
+
+				deliver(port, segment);
+			}
+
+			// a thread that is no longer the receiver of its port, even if a
+			// new one has been started since, exits before taking more mail
+			if (receivers[port] != KThread.currentThread()) {
+				lock.release();
+				return;
+			}
+			lock.release();
+		}
+	}
+
+	private void deliver(int port, Segment segment) {
+		int remoteLink = segment.mail.packet.srcLink;
+		int remotePort = segment.mail.srcPort;
+		int key = key(port, remoteLink, remotePort);
+		Connection connection = connections.get(key);
+
+		// a connection request is queued for accept(), or answered again if
+		// it has already been accepted
+		if ((segment.flags & (Segment.SYN | Segment.ACK)) == Segment.SYN) {
+			if (connection == null && listening[port]) {
+				connection = new Connection(this, port, remoteLink,
+						remotePort, Connection.synReceived);
+				add(connection);
+				pending.get(port).add(connection);
+			}
+			else if (connection != null
+					&& connection.state == Connection.established) {
+				connection.sendSynAck();
+			}
+			return;
+		}
+
+		if (connection != null) {
+			connection.receive(segment);
+
+			// a closed window needs the timer even with nothing in flight
+			if (connection.needsTimer())
+				timerNeeded.wake();
+			return;
+		}
+
+		// the connection was closed here; acknowledge whatever the other end
+		// still sends so that it can finish
+		if (segment.isSequenced()) {
+			try {
+				send(new Segment(remoteLink, remotePort, linkAddress, port,
+						Segment.ACK, windowSize, 0, segment.seq + 1, 0,
+						new byte[0]));
+			}
+			catch (MalformedPacketException e) {
+				Lib.assertNotReached();
+			}
+		}
+	}
+
+	private void sendLoop() {
+		while (true) {
+			lock.acquire();
+			while (outbox.isEmpty())
+				outboxNotEmpty.sleep();
+			Segment segment = outbox.removeFirst();
+			lock.release();
+
+			postOffice.send(segment.mail);
+		}
+	}
+
+	private void timerLoop() {
+		while (true) {
+			lock.acquire();
+			while (!anyNeedsTimer())
+				timerNeeded.sleep();
+
+			ArrayList<Connection> active = new ArrayList<Connection>(
+					connections.values());
+			for (int i = 0; i < active.size(); i++)
+				active.get(i).checkTimers();
+			lock.release();
+
+			ThreadedKernel.alarm.waitUntil(timerInterval);
+		}
+	}
+
+	private boolean anyNeedsTimer() {
+		for (Connection connection : connections.values()) {
+			if (connection.needsTimer())
+				return true;
+		}
+
+		return false;
+	}
+
+	private PostOffice postOffice;
+
+	/** The link address of this machine. */
+	int linkAddress;
+
+	/** The most segments a connection has in flight, or buffers received. */
+	int windowSize;
+
+	/** The most written segments a connection queues before writes block. */
+	int sendQueueLimit;
+
+	/** The retransmission timeout before the round-trip time is measured. */
+	long initialRTO;
+
+	/** The bounds of the retransmission timeout, in ticks. */
+	long minRTO = 500, maxRTO = 64000;
+
+	/** The number of timeouts in a row after which a connection fails. */
+	int maxTimeouts = 12;
+
+	/** Protects every connection, and the state of the transport. */
+	Lock lock;
+
+	/** The connections, by local port and remote address and port. */
+	private HashMap<Integer, Connection> connections;
+
+	/** Connection requests waiting to be accepted, by local port. */
+	private ArrayList<LinkedList<Connection>> pending;
+
+	/** True for each port <tt>accept()</tt> has been called for. */
+	private boolean[] listening;
+
+	/** The thread receiving segments on each port, or <tt>null</tt>. */
+	private KThread[] receivers;
+
+	/** The number of connections using each local port. */
+	private int[] portUsers;
+
+	/** Segments waiting for the sending thread. */
+	private LinkedList<Segment> outbox = new LinkedList<Segment>();
+
+	private Condition outboxNotEmpty;
+
+	private Condition timerNeeded;
+
+	/** How often the timer thread checks for overdue acknowledgments. */
+	private static final long timerInterval = 100;
+
+	private static final char dbgTransport = 'T';
+}
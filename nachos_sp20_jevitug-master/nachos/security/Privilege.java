@@ -157,6 +157,31 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of ticks that can be charged with
+		 * <tt>tick(inKernelMode, count)</tt> before the next pending
+		 * interrupt becomes due. Returns 0 while interrupt tracing is
+		 * enabled, so that every tick is traced individually.
+		 * 
+		 * @param inKernelMode <tt>true</tt> to count kernel ticks,
+		 * <tt>false</tt> to count user ticks.
+		 * @return the number of ticks that can elapse without invoking an
+		 * interrupt handler.
+		 */
+		public long ticksUntilDue(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. The caller
+		 * must ensure that no interrupt becomes due during these ticks (see
+		 * <tt>ticksUntilDue()</tt>), so no interrupt handlers are invoked.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks.
+		 */
+		public void tick(boolean inKernelMode, long count);
 	}
 
 	/**
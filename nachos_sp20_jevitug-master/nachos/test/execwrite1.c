@@ -0,0 +1,110 @@
+/*
+ * execwrite1.c
+ *
+ * Test that exec runs what was last written to an executable, even
+ * when the file was executed while it was still open for writing.
+ * Copies exit1.coff in two parts, executing the copy in between, then
+ * overwrites the copy through a second descriptor with a version that
+ * exits with a different status.  Requires exec, join, read, write
+ * and writev.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int buf[1024];
+
+/* Execute "file" and check the status it exits with. */
+void
+do_exec (char *file, int expected, int code)
+{
+    char *args[1];
+    int pid, r, status;
+
+    args[0] = file;
+    printf ("executing %s...\n", file);
+    pid = exec (file, 1, args);
+    if (pid < 0) {
+	printf ("...failed (pid = %d)\n", pid);
+	exit (code);
+    }
+    r = join (pid, &status);
+    if (r != 1 || status != expected) {
+	printf ("...failed (join = %d, status = %d, expected %d)\n",
+		r, status, expected);
+	exit (code - 1);
+    }
+    printf ("...passed (status = %d)\n", status);
+}
+
+int
+main ()
+{
+    struct iovec iov[2];
+    char *copy = "execw.coff";
+    char *args[1];
+    int src, dst, dst2, len, r, pid, i;
+
+    src = open ("exit1.coff");
+    dst = creat (copy);
+    dst2 = open (copy);
+    if (src < 0 || dst < 0 || dst2 < 0) {
+	printf ("...failed to open files (%d, %d, %d)\n", src, dst, dst2);
+	exit (-1001);
+    }
+
+    len = read (src, buf, sizeof (buf));
+    if (len <= 1100 || len >= sizeof (buf)) {
+	printf ("...failed to read exit1.coff (%d)\n", len);
+	exit (-1002);
+    }
+
+    /* the headers alone are not a valid executable */
+    printf ("writing the first 100 bytes of %s...\n", copy);
+    r = write (dst, buf, 100);
+    if (r != 100) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1003);
+    }
+    args[0] = copy;
+    printf ("executing %s...\n", copy);
+    pid = exec (copy, 1, args);
+    if (pid >= 0) {
+	printf ("...failed (pid = %d, expected -1)\n", pid);
+	exit (-1004);
+    }
+    printf ("...passed\n");
+
+    /* finish the copy through the same descriptor and run it again */
+    printf ("writing the rest of %s...\n", copy);
+    iov[0].iov_base = (char *) buf + 100, iov[0].iov_len = 1000;
+    iov[1].iov_base = (char *) buf + 1100, iov[1].iov_len = len - 1100;
+    r = writev (dst, iov, 2);
+    if (r != len - 100) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1005);
+    }
+    do_exec (copy, 123, -1006);
+
+    /* overwrite the copy from the start with "exit (124)" */
+    for (i = 0; i < len / 4 && buf[i] != 0x2404007b; i++)
+	;
+    if (i == len / 4) {
+	printf ("...failed to find \"li a0, 123\" in exit1.coff\n");
+	exit (-1008);
+    }
+    buf[i] = 0x2404007c;
+    printf ("rewriting %s through another descriptor...\n", copy);
+    r = write (dst2, buf, len);
+    if (r != len) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1009);
+    }
+    do_exec (copy, 124, -1010);
+
+    close (src);
+    close (dst);
+    close (dst2);
+    unlink (copy);
+    return 0;
+}
@@ -0,0 +1,103 @@
+/*
+ * readv1.c
+ *
+ * Test the readv and writev system calls: scatter/gather transfers
+ * that cross page boundaries, a short read at the end of a file, and
+ * iovec arrays and buffers that are invalid.  Requires basic
+ * functionality for creat, open, close and unlink.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+#define SRCLEN 5100
+
+char src[SRCLEN];
+char dst[7000];
+
+void
+check (char *what, int r, int expected, int code)
+{
+    printf ("%s...\n", what);
+    if (r == expected) {
+	printf ("...passed (r = %d)\n", r);
+    } else {
+	printf ("...failed (r = %d, expected %d)\n", r, expected);
+	exit (code);
+    }
+}
+
+int
+main ()
+{
+    struct iovec iov[17];
+    char *file = "readv.out";
+    int fd, r, i;
+
+    for (i = 0; i < SRCLEN; i++) {
+	src[i] = (char) (i * 7 + 3);
+    }
+
+    fd = creat (file);
+    check ("creating readv.out", fd >= 0, 1, -1001);
+
+    /* gather 100, 0 and 5000 bytes; the last buffer spans pages */
+    iov[0].iov_base = src, iov[0].iov_len = 100;
+    iov[1].iov_base = src + 100, iov[1].iov_len = 0;
+    iov[2].iov_base = src + 100, iov[2].iov_len = SRCLEN - 100;
+    r = writev (fd, iov, 3);
+    check ("writev of three buffers", r, SRCLEN, -1002);
+
+    /* an invalid buffer anywhere fails the whole call */
+    iov[0].iov_base = src, iov[0].iov_len = 10;
+    iov[1].iov_base = (char *) 0x7FF00000, iov[1].iov_len = 10;
+    r = writev (fd, iov, 2);
+    check ("writev with an invalid buffer", r, -1, -1003);
+
+    close (fd);
+    fd = open (file);
+    check ("opening readv.out", fd >= 0, 1, -1004);
+
+    r = readv (fd, (struct iovec *) 0x7FF00000, 2);
+    check ("readv with an invalid iovec pointer", r, -1, -1005);
+
+    /* nothing is consumed from the file when a later buffer is bad */
+    iov[0].iov_base = dst, iov[0].iov_len = 10;
+    iov[1].iov_base = (char *) 0x7FF00000, iov[1].iov_len = 10;
+    r = readv (fd, iov, 2);
+    check ("readv with an invalid buffer", r, -1, -1006);
+
+    r = readv (fd, iov, 17);
+    check ("readv with too many buffers", r, -1, -1007);
+
+    iov[0].iov_base = dst, iov[0].iov_len = -1;
+    r = readv (fd, iov, 1);
+    check ("readv with a negative length", r, -1, -1008);
+
+    iov[0].iov_base = (char *) main, iov[0].iov_len = 16;
+    r = readv (fd, iov, 1);
+    check ("readv into read-only text", r, -1, -1009);
+
+    /* scatter into 3000, 0 and 4000 bytes; the file ends in the last */
+    iov[0].iov_base = dst, iov[0].iov_len = 3000;
+    iov[1].iov_base = dst + 3000, iov[1].iov_len = 0;
+    iov[2].iov_base = dst + 3000, iov[2].iov_len = 4000;
+    r = readv (fd, iov, 3);
+    check ("readv short at the end of the file", r, SRCLEN, -1010);
+
+    printf ("validating readv.out...\n");
+    for (i = 0; i < SRCLEN; i++) {
+	if (dst[i] != src[i]) {
+	    printf ("...failed (offset %d)\n", i);
+	    exit (-1011);
+	}
+    }
+    printf ("...passed\n");
+
+    r = readv (fd, iov, 3);
+    check ("readv at the end of the file", r, 0, -1012);
+
+    close (fd);
+    unlink (file);
+    return 0;
+}
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -246,6 +248,30 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* A buffer for readv() and writev(). */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but fill the iovcnt buffers described by iov in order, as if
+ * they were one buffer. At most 16 buffers may be given. Every buffer is
+ * checked before any data is read, so that if one of them is read-only or
+ * invalid, -1 is returned and nothing is consumed from the file.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov in order, as if
+ * they were one buffer. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
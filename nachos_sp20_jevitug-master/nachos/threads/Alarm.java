@@ -1,8 +1,11 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Random;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -32,21 +35,16 @@ public class Alarm {
 	public void timerInterrupt() {
 		boolean currStatus = Machine.interrupt().disable();
 		long currTime = Machine.timer().getTime();
-		//Check all threads that have called Alarm.waitUntil(x)
-		//Check if any thread is ready to be woken up(unblocked) - use the 
-		//      wakeup time computed in waitUntil(x)
-		//Change its status to ready in order to unblock it
-		
-		//while waitQueue isn't empty AND the current time is past the wake time
-		//of the thread at the head of the queue
-		while(!waitQueue.isEmpty() && waitQueue.peek().getWakeTime() <= currTime){
-			//remove the head of the queue
-			wThread temp = waitQueue.poll();
-			//get the KThread of this waitThread
-			KThread thread = temp.getThread();
-			thread.ready();
-		}		
-		//yield the current thread and restore status
+		//wake every thread whose wake time computed in waitUntil(x) has
+		//passed, in order of wake time
+		wheel.expire(currTime, expired);
+		for (int i = 0; i < expired.size(); i++) {
+			expired.get(i).thread.ready();
+		}
+		expired.clear();
+		//charge the current thread for this interrupt, then yield it and
+		//restore status
+		ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread());
 		KThread.yield();
 		Machine.interrupt().restore(currStatus);
 	}
@@ -68,91 +66,235 @@ public class Alarm {
 		if(x <= 0){ 
 			return;
 		}
-		
-		//calculate wakeTime
-		long wakeTime = Machine.timer().getTime() + x;
-		
-		//create a new wThread and add to wait queue
-		wThread curr = new wThread(KThread.currentThread(), wakeTime);
-		waitQueue.add(curr);
-		
-		//disable interrupts, sleep the thread, then restore	
+
 		boolean currStatus = Machine.interrupt().disable();
+
+		//a thread sleeps in at most one waitUntil(x) at a time, so it
+		//reuses the same sleeper every time
+		KThread thread = KThread.currentThread();
+		if(thread.sleeper == null){
+			thread.sleeper = new Sleeper(thread);
+		}
+
+		//calculate wakeTime and put the thread on the timer wheel
+		thread.sleeper.wakeTime = Machine.timer().getTime() + x;
+		wheel.add(thread.sleeper);
+
+		//sleep the thread, then restore
 		KThread.sleep();
 		Machine.interrupt().restore(currStatus);
 	}
 
-	//data structure to hold waiting threads
-	private PriorityQueue<wThread> waitQueue = new PriorityQueue<wThread>(10, new waitComparator());
+        /**
+	 * Cancel any timer set by <i>thread</i>, effectively waking
+	 * up the thread immediately (placing it in the scheduler
+	 * ready set) and returning true.  If <i>thread</i> has no
+	 * timer set, return false.
+	 * 
+	 * <p>
+	 * @param thread the thread whose timer should be cancelled.
+	 */
+        public boolean cancel(KThread thread) {
+		boolean currStatus = Machine.interrupt().disable();
+		//calling cancel() on a thread only takes it off the timer wheel;
+		//it still must be woken up in Condition2
+		boolean isThere = thread.sleeper != null && wheel.remove(thread.sleeper);
+		Machine.interrupt().restore(currStatus);
+		return isThere;
+	}
+
+	//timer wheel holding waiting threads
+	private TimerWheel wheel = new TimerWheel();
 
-	//container class for waiting threads that implements Comparable
-	private class wThread{
-		//wait thread container object that will hold a KThread and its wakeTime
-		private KThread thread = null;
-		private long wakeTime = -5;
+	//threads expired by the current timer interrupt
+	private ArrayList<Sleeper> expired = new ArrayList<Sleeper>();
 
-		public wThread(KThread thread, long wakeTime){
+	/**
+	 * A thread waiting in <tt>waitUntil()</tt>. Each <tt>KThread</tt> keeps
+	 * its own sleeper, which also serves as its link in a timer wheel list.
+	 */
+	static class Sleeper {
+		Sleeper(KThread thread) {
 			this.thread = thread;
-			this.wakeTime = wakeTime;
 		}
-		//getter methods
-		public long getWakeTime(){
-			return wakeTime;
+
+		final KThread thread;
+
+		long wakeTime;
+
+		Sleeper prev = null, next = null;
+	}
+
+	/**
+	 * A hashed timing wheel. Time is divided into buckets of
+	 * <tt>Stats.TimerTicks</tt>, and a sleeper is kept in the slot for the
+	 * bucket of its wake time, modulo the number of slots, in a circular
+	 * doubly linked list. A timer interrupt only visits the slots of the
+	 * buckets that have passed since the previous interrupt, and wakes the
+	 * sleepers there whose wake time has come; sleepers more than one turn of
+	 * the wheel away are skipped.
+	 */
+	private static class TimerWheel {
+		TimerWheel() {
+			for (int i = 0; i < numSlots; i++) {
+				slots[i] = new Sleeper(null);
+				slots[i].prev = slots[i].next = slots[i];
+			}
+		}
+
+		void add(Sleeper sleeper) {
+			Lib.assertTrue(sleeper.next == null);
+
+			Sleeper slot = slots[(int) (sleeper.wakeTime / resolution) & slotMask];
+			sleeper.prev = slot.prev;
+			sleeper.next = slot;
+			slot.prev.next = sleeper;
+			slot.prev = sleeper;
+			size++;
 		}
-		public KThread getThread(){
-			return thread;
+
+		boolean remove(Sleeper sleeper) {
+			if (sleeper.next == null)
+				return false;
+
+			sleeper.prev.next = sleeper.next;
+			sleeper.next.prev = sleeper.prev;
+			sleeper.prev = sleeper.next = null;
+			size--;
+			return true;
+		}
+
+		/**
+		 * Move every sleeper whose wake time is no later than <i>time</i> to
+		 * <i>expired</i>, sorted by wake time.
+		 */
+		void expire(long time, ArrayList<Sleeper> expired) {
+			long bucket = time / resolution;
+
+			// the bucket of the previous interrupt may hold sleepers that
+			// were not due then, so it is visited again
+			long first = Math.max(lastBucket, bucket - numSlots + 1);
+			for (long b = first; b <= bucket && size > 0; b++) {
+				Sleeper slot = slots[(int) b & slotMask];
+				for (Sleeper sleeper = slot.next; sleeper != slot;) {
+					Sleeper next = sleeper.next;
+					if (sleeper.wakeTime <= time) {
+						remove(sleeper);
+						expired.add(sleeper);
+					}
+					sleeper = next;
+				}
+			}
+			lastBucket = bucket;
+
+			if (expired.size() > 1)
+				Collections.sort(expired, new waitComparator());
 		}
+
+		private static final int numSlots = 256;
+
+		private static final int slotMask = numSlots - 1;
+
+		private static final long resolution = Stats.TimerTicks;
+
+		private Sleeper[] slots = new Sleeper[numSlots];
+
+		private int size = 0;
+
+		private long lastBucket = 0;
 	}
-	
-	//class to implement a comparator for the priority queue to use to sort 
-	//waiting threads by waketime
-	private class waitComparator implements Comparator<wThread>{
-		//will use ascending order of waketimes
-		public int compare(wThread w1, wThread w2){
-			if(w1.getWakeTime() > w2.getWakeTime()){
+
+	//class to implement a comparator to sort waiting threads by waketime
+	private static class waitComparator implements Comparator<Sleeper>{
+		//will use ascending order of waketimes, then of thread creation so
+		//that threads with the same waketime wake in a fixed order
+		public int compare(Sleeper w1, Sleeper w2){
+			if(w1.wakeTime > w2.wakeTime){
 				return 1;
 			}
-			else if(w1.getWakeTime() < w2.getWakeTime()){
+			else if(w1.wakeTime < w2.wakeTime){
 				return -1;
 			}
-			return 0;
+			return w1.thread.compareTo(w2.thread);
 		}
 	}
 
-        /**
-	 * Cancel any timer set by <i>thread</i>, effectively waking
-	 * up the thread immediately (placing it in the scheduler
-	 * ready set) and returning true.  If <i>thread</i> has no
-	 * timer set, return false.
-	 * 
-	 * <p>
-	 * @param thread the thread whose timer should be cancelled.
+	/**
+	 * Measure the timer wheel with 10,000 sleeping threads that are woken as
+	 * their timeouts expire, and, as with <tt>Condition2.sleepFor()</tt>, are
+	 * often woken and cancelled before their timeouts.
 	 */
-        public boolean cancel(KThread thread) {
-		boolean currStatus = Machine.interrupt().disable();
-		//temporary queue to hold threads
-		boolean isThere = false;
-		PriorityQueue<wThread> temp = new PriorityQueue<wThread>(10, new waitComparator());
-		//loop through threads, see if reference is in there
-		while(!waitQueue.isEmpty()){
-			//remove the head
-			wThread w = waitQueue.poll();
-			//check if w is thread we're looking for
-			if(w.getThread() == thread){
-				isThere = true;
+	public static void benchmark() {
+		final int numThreads = 10000;
+		final int numInterrupts = 100000;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper[] sleepers = new Sleeper[numThreads];
+		for (int i = 0; i < numThreads; i++)
+			sleepers[i] = new Sleeper(new KThread().setName("sleeper " + i));
+
+		//time the second run, once the JIT has compiled the wheel
+		runTimers(sleepers, numInterrupts);
+		long start = System.nanoTime();
+		long numOperations = runTimers(sleepers, numInterrupts);
+		long time = System.nanoTime() - start;
+
+		System.out.println("Alarm: " + numThreads + " sleepers: "
+				+ time / numOperations + " ns per timer wheel operation");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Put every sleeper to sleep on a new timer wheel, then simulate
+	 * <i>numInterrupts</i> timer interrupts. At each, the expired sleepers go
+	 * back to sleep, and a few sleepers are cancelled and put back to sleep
+	 * with new timeouts.
+	 *
+	 * @return the number of operations on the timer wheel.
+	 */
+	private static long runTimers(Sleeper[] sleepers, int numInterrupts) {
+		final int cancelsPerInterrupt = 20;
+		final int maxTimeout = 100000;
+
+		TimerWheel timers = new TimerWheel();
+		Random random = new Random(sleepers.length);
+		ArrayList<Sleeper> expired = new ArrayList<Sleeper>();
+		long time = 0, numOperations = 0;
+
+		// the sleepers may still be linked into the wheel of a previous run
+		for (int i = 0; i < sleepers.length; i++) {
+			sleepers[i].prev = sleepers[i].next = null;
+			sleepers[i].wakeTime = time + 1 + random.nextInt(maxTimeout);
+			timers.add(sleepers[i]);
+			numOperations++;
+		}
+
+		for (int i = 0; i < numInterrupts; i++) {
+			time += Stats.TimerTicks + random.nextInt(Stats.TimerTicks / 10);
+
+			timers.expire(time, expired);
+			numOperations++;
+			for (int j = 0; j < expired.size(); j++) {
+				Sleeper sleeper = expired.get(j);
+				Lib.assertTrue(sleeper.wakeTime <= time);
+				sleeper.wakeTime = time + 1 + random.nextInt(maxTimeout);
+				timers.add(sleeper);
+				numOperations++;
 			}
-			//put an 'else' here to remove the thread from waitQueue
-			//so, calling cancel() on a thread removes it from the alarm 
-			//wait queue (essentially removing the timer). Still must be
-			//woken up in Condition2 
-			else{
-				temp.add(w);
+			expired.clear();
+
+			for (int j = 0; j < cancelsPerInterrupt; j++) {
+				Sleeper sleeper = sleepers[random.nextInt(sleepers.length)];
+				Lib.assertTrue(timers.remove(sleeper));
+				sleeper.wakeTime = time + 1 + random.nextInt(maxTimeout);
+				timers.add(sleeper);
+				numOperations += 2;
 			}
 		}
-		//give back the waitQueue values
-	        waitQueue = temp;	
-		Machine.interrupt().restore(currStatus);
-		return isThere;
+
+		return numOperations;
 	}
 
 	//Testing
@@ -348,6 +348,8 @@ public class KThread {
 		});
 		idleThread.setName("idle");
 
+		ticklessIdle = Config.getBoolean("ThreadedKernel.ticklessIdle", true);
+
 		Machine.autoGrader().setIdleThread(idleThread);
 
 		idleThread.fork();
@@ -359,9 +361,15 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
 			nextThread = idleThread;
 
+			// no thread can become ready before the next interrupt, so skip
+			// the ticks the idle thread would otherwise spin through
+			if (ticklessIdle)
+				Machine.interrupt().idle();
+		}
+
 		nextThread.run();
 	}
 
@@ -496,6 +504,54 @@ public class KThread {
 		System.out.println("post second call of child0.join()");
 	}
 
+	/**
+	 * Measure the cost of context switches. Two threads yield back and forth
+	 * to each other, and the average time of a round trip (two context
+	 * switches) is printed. Then half of <tt>TCB.maxThreads</tt> threads are
+	 * forked at once and joined, to check that that many threads can exist.
+	 * Compare the <tt>TCB.handoff</tt> settings by running this with each.
+	 */
+	public static void yieldBenchmark() {
+		final int numRoundTrips = 100000;
+
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < numRoundTrips; i++)
+					KThread.yield();
+			}
+		}).setName("ping-pong partner");
+		partner.fork();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numRoundTrips; i++)
+			KThread.yield();
+		long time = System.nanoTime() - start;
+
+		partner.join();
+
+		System.out.println("KThread.yieldBenchmark: " + numRoundTrips
+				+ " round trips, " + time / numRoundTrips + " ns each");
+
+		int numThreads = TCB.getMaxThreads() / 2;
+		KThread[] threads = new KThread[numThreads];
+
+		start = System.nanoTime();
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					KThread.yield();
+				}
+			}).setName("forked thread " + i);
+			threads[i].fork();
+		}
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+		time = System.nanoTime() - start;
+
+		System.out.println("KThread.yieldBenchmark: " + numThreads
+				+ " threads forked and joined in " + time / 1000000 + " ms");
+	}
+
 	public int getStatus(){
 		return this.status;
 	}
@@ -509,6 +565,12 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * This thread's handle in the alarm's timer wheel, allocated the first
+	 * time it calls <tt>Alarm.waitUntil()</tt>.
+	 */
+	Alarm.Sleeper sleeper = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -548,4 +610,10 @@ public class KThread {
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
+
+	/**
+	 * <tt>true</tt> if simulated time jumps to the next interrupt when only
+	 * the idle thread can run.
+	 */
+	private static boolean ticklessIdle = true;
 }
@@ -2,29 +2,37 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * that holding a lottery, and changing the tickets of a waiting thread when
+ * its donations change, both take time logarithmic in the number of waiting
+ * threads. The effective priority of a thread is its number of tickets plus
+ * the tickets of every thread waiting in a queue it owns, capped at
+ * <tt>priorityMaximum</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +43,349 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Tests whether this module is working, and measures the speed and
+	 * fairness of the lottery. Thousands of threads with random numbers of
+	 * tickets repeatedly win the lottery and rejoin the queue, as if each ran
+	 * for one time slice. Reports the number of lotteries held per second,
+	 * compared with a lottery that sums the tickets of every waiting thread,
+	 * and how far each thread's share of the wins is from its share of the
+	 * tickets. The threads are never forked; they only exist in the queues of
+	 * a private scheduler.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// tickets add up through a chain of two locks
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		scheduler.setPriority(a, 1);
+		scheduler.setPriority(b, 2);
+		scheduler.setPriority(c, 4);
+		ThreadQueue lock1 = scheduler.newThreadQueue(true);
+		ThreadQueue lock2 = scheduler.newThreadQueue(true);
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(b);
+		lock2.waitForAccess(c);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 6);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 7);
+		scheduler.setPriority(c, 10);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 13);
+		Lib.assertTrue(lock2.nextThread() == c);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 3);
+		Lib.assertTrue(scheduler.getEffectivePriority(c) == 10);
+		Lib.assertTrue(lock1.nextThread() == b);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(lock2.nextThread() == null);
+
+		// tickets saturate instead of overflowing
+		scheduler.setPriority(c, priorityMaximum);
+		lock1.acquire(a);
+		lock1.waitForAccess(c);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == priorityMaximum);
+		Lib.assertTrue(lock1.nextThread() == c);
+
+		final int numThreads = 4000;
+		final int numLotteries = 1000000;
+
+		Random random = new Random(numThreads);
+		KThread[] threads = new KThread[numThreads];
+		int[] tickets = new int[numThreads];
+		long totalTickets = 0;
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("test thread " + i);
+			tickets[i] = 1 + random.nextInt(100);
+			totalTickets += tickets[i];
+			scheduler.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		// a lottery that sums every thread's tickets, for comparison
+		long naiveStart = System.nanoTime();
+		int[] naiveWins = new int[numThreads];
+		for (int i = 0; i < numLotteries / 10; i++) {
+			long winner = (long) (random.nextDouble() * totalTickets);
+			int j = 0;
+			for (long sum = tickets[0]; sum <= winner; sum += tickets[j])
+				j++;
+			naiveWins[j]++;
+		}
+		long naiveTime = System.nanoTime() - naiveStart;
+
+		KThread[] winners = new KThread[numLotteries];
+		long start = System.nanoTime();
+		for (int i = 0; i < numLotteries; i++) {
+			winners[i] = queue.nextThread();
+			queue.waitForAccess(winners[i]);
+		}
+		long time = System.nanoTime() - start;
+
+		HashMap<KThread, Integer> wins = new HashMap<KThread, Integer>();
+		for (int i = 0; i < numThreads; i++)
+			wins.put(threads[i], 0);
+		for (int i = 0; i < numLotteries; i++)
+			wins.put(winners[i], wins.get(winners[i]) + 1);
+
+		// a fair lottery still has sampling error, with a mean of about
+		// sqrt(2 / pi) standard deviations
+		double totalError = 0, totalSamplingError = 0;
+		for (int i = 0; i < numThreads; i++) {
+			double expected = (double) tickets[i] / totalTickets;
+			double actual = (double) wins.get(threads[i]) / numLotteries;
+
+			totalError += Math.abs(actual - expected) / expected;
+			totalSamplingError += Math.sqrt(2 / Math.PI
+					* (1 - expected) / (numLotteries * expected));
+		}
+
+		System.out.println("LotteryScheduler: " + numThreads + " threads, "
+				+ numLotteries / (time / 1000000 + 1) * 1000
+				+ " lotteries/s (summing every thread: " + numLotteries / 10
+				/ (naiveTime / 1000000 + 1) * 1000 + " lotteries/s)");
+		System.out.println("LotteryScheduler: share of wins vs. share of "
+				+ "tickets: mean error " + Math.round(totalError / numThreads
+				* 1000) / 10.0 + "% (" + Math.round(totalSamplingError
+				/ numThreads * 1000) / 10.0 + "% expected from sampling)");
+
+		while (queue.nextThread() != null)
+			;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * The waiting threads occupy numbered slots, and a Fenwick tree over the
+	 * slots holds running sums of their tickets. The winning ticket is found by
+	 * descending the tree, and a thread's tickets are changed by updating the
+	 * sums that cover its slot; both take time logarithmic in the number of
+	 * slots. Slots freed by departing threads are reused.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Return the entry of the thread holding the most tickets, the likeliest
+		 * winner, without holding a lottery. The winner is only drawn when a
+		 * thread is dequeued, so that looking at the queue does not change
+		 * which threads win later.
+		 *
+		 * @return the entry with the most tickets, or <tt>null</tt> if no
+		 * thread is waiting.
+		 */
+		protected QueueEntry pickNextEntry() {
+			QueueEntry best = null;
+			for (int i = 1; i < slots.length; i++) {
+				if (slots[i] != null
+						&& (best == null || tickets[i] > tickets[best.index]))
+					best = slots[i];
+			}
+
+			return best;
+		}
+
+		protected QueueEntry takeNextEntry() {
+			if (totalTickets == 0)
+				return null;
+
+			long winner;
+			if (totalTickets <= Integer.MAX_VALUE)
+				winner = Lib.random((int) totalTickets);
+			else
+				winner = (long) (Lib.random() * totalTickets);
+
+			// find the first slot whose running sum exceeds the winner
+			int slot = 0;
+			for (int step = Integer.highestOneBit(slots.length - 1); step > 0; step >>= 1) {
+				if (slot + step < slots.length && sums[slot + step] <= winner) {
+					slot += step;
+					winner -= sums[slot];
+				}
+			}
+
+			return slots[slot + 1];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].state.thread + " ");
+			}
+		}
+
+		protected int getDonation() {
+			if (!transferPriority)
+				return 0;
+
+			return (int) Math.min(totalTickets, priorityMaximum);
+		}
+
+		protected void add(QueueEntry entry) {
+			if (numFree == 0)
+				grow();
+
+			int slot = free[--numFree];
+			slots[slot] = entry;
+			entry.index = slot;
+
+			tickets[slot] = entry.state.getEffectivePriority();
+			addTickets(slot, tickets[slot]);
+		}
+
+		protected void remove(QueueEntry entry) {
+			int slot = entry.index;
+			addTickets(slot, -tickets[slot]);
+
+			slots[slot] = null;
+			tickets[slot] = 0;
+			entry.index = -1;
+
+			free[numFree++] = slot;
+		}
+
+		protected void reposition(QueueEntry entry) {
+			int slot = entry.index;
+			int newTickets = entry.state.getEffectivePriority();
+
+			addTickets(slot, newTickets - tickets[slot]);
+			tickets[slot] = newTickets;
+		}
+
+		/**
+		 * Add to the tickets in a slot, updating every running sum that
+		 * includes it.
+		 */
+		private void addTickets(int slot, long delta) {
+			totalTickets += delta;
+
+			for (int i = slot; i < sums.length; i += i & -i)
+				sums[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the running sums.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+			int newLength = Math.max(1, 2 * (oldLength - 1)) + 1;
+
+			slots = Arrays.copyOf(slots, newLength);
+			tickets = Arrays.copyOf(tickets, newLength);
+			sums = new long[newLength];
+			free = Arrays.copyOf(free, newLength);
+
+			for (int i = 1; i < newLength; i++) {
+				sums[i] += tickets[i];
+				int parent = i + (i & -i);
+				if (parent < newLength)
+					sums[parent] += sums[i];
+			}
+
+			// hand out the lowest new slots first
+			for (int i = newLength - 1; i >= oldLength; i--)
+				free[numFree++] = i;
+		}
+
+		/**
+		 * The entry in each slot, or <tt>null</tt> if the slot is free. Slot 0
+		 * is never used, and the number of usable slots is a power of two.
+		 */
+		private QueueEntry[] slots = new QueueEntry[1];
+
+		/** The tickets of the thread in each slot. */
+		private int[] tickets = new int[1];
+
+		/** The Fenwick tree of running sums of <tt>tickets</tt>. */
+		private long[] sums = new long[1];
+
+		/** A stack of free slots. */
+		private int[] free = new int[1];
+
+		private int numFree = 0;
+
+		/** The total number of tickets held by waiting threads. */
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. Donated tickets
+	 * add to a thread's own tickets.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		protected int computeEffectivePriority() {
+			long effective = priority;
+			for (PriorityQueue queue : owned)
+				effective += queue.getDonation();
+
+			return (int) Math.min(effective, priorityMaximum);
+		}
 	}
 }
@@ -0,0 +1,428 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread sits at one of a small number of levels, level 0 being the
+ * highest. The next thread to be dequeued is always the thread that has been
+ * waiting longest at the highest non-empty level. A new thread starts at level
+ * 0. Each level has a quantum, counted in timer interrupts, that doubles from
+ * one level to the next; once a thread has been running at a level for its
+ * whole quantum, it drops to the level below. The quantum is charged by
+ * <tt>Alarm.timerInterrupt()</tt>, and it is not refunded when the thread
+ * yields or blocks, so a thread cannot keep its level by giving up the
+ * processor just before the interrupt.
+ *
+ * <p>
+ * Threads that use the processor in short bursts between blocking, such as a
+ * shell waiting on the console, therefore stay near the top and are run as
+ * soon as they become ready, while threads that compute for long stretches
+ * sink to the bottom. To keep those from starving, every thread is moved back
+ * to level 0 at a fixed interval.
+ *
+ * <p>
+ * The number of levels and the boost interval are read from
+ * <tt>MLFQScheduler.levels</tt> and <tt>MLFQScheduler.boostInterval</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 64);
+
+		Lib.assertTrue(numLevels >= 1 && numLevels <= maxLevels);
+		Lib.assertTrue(boostInterval >= 1);
+	}
+
+	/**
+	 * Allocate a new multi-level feedback thread queue.
+	 *
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new multi-level feedback thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new LevelQueue();
+	}
+
+	/**
+	 * Get the level of the specified thread, 0 being the highest.
+	 *
+	 * @param thread the thread to get the level of.
+	 * @return the thread's level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getLevel();
+	}
+
+	/**
+	 * Charge the thread that was running when the timer interrupt occurred for
+	 * one interrupt of its quantum, moving it down a level if it has used up
+	 * its quantum, and boost every thread back to level 0 once every
+	 * <tt>boostInterval</tt> interrupts.
+	 *
+	 * @param thread the thread that was running.
+	 */
+	public void timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++interruptsSinceBoost >= boostInterval) {
+			interruptsSinceBoost = 0;
+			epoch++;
+		}
+
+		getThreadState(thread).charge();
+	}
+
+	/**
+	 * Tests whether this module is working, and compares how long an
+	 * interactive thread waits to run when sharing the processor with
+	 * compute-bound threads, under this scheduler and under a round-robin
+	 * scheduler. The threads are never forked; running them is simulated by
+	 * taking them off a ready queue and charging them timer interrupts.
+	 */
+	public static void selfTest() {
+		MLFQScheduler scheduler = new MLFQScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new KThread().setName("test thread " + i);
+
+		// FIFO within a level, higher levels first
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		scheduler.timerInterrupt(threads[0]);
+		Lib.assertTrue(scheduler.getPriority(threads[0]) == 1);
+		queue.waitForAccess(threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// the quantum doubles with each level, and the bottom level is kept
+		scheduler.timerInterrupt(threads[0]);
+		Lib.assertTrue(scheduler.getPriority(threads[0]) == 1);
+		scheduler.timerInterrupt(threads[0]);
+		Lib.assertTrue(scheduler.getPriority(threads[0]) == 2);
+		for (int i = 0; i < 1 << scheduler.numLevels; i++)
+			scheduler.timerInterrupt(threads[0]);
+		Lib.assertTrue(scheduler.getPriority(threads[0])
+				== scheduler.numLevels - 1);
+
+		// a thread may wait in two queues at once, as with
+		// Condition2.sleepFor()
+		ThreadQueue other = scheduler.newThreadQueue(false);
+		queue.waitForAccess(threads[0]);
+		queue.waitForAccess(threads[1]);
+		other.waitForAccess(threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(other.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+
+		// a boost moves waiting threads to level 0 behind the threads that
+		// were already there, and resets their quanta
+		queue.waitForAccess(threads[0]);
+		queue.waitForAccess(threads[1]);
+		scheduler.interruptsSinceBoost = scheduler.boostInterval - 1;
+		scheduler.timerInterrupt(threads[2]);
+		queue.waitForAccess(threads[3]);
+		Lib.assertTrue(scheduler.getPriority(threads[0]) == 0);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		responseTest(new RoundRobinScheduler(), "RoundRobinScheduler");
+		responseTest(new MLFQScheduler(), "MLFQScheduler");
+	}
+
+	/**
+	 * Simulate one interactive thread, which runs for less than a timer
+	 * interrupt and then blocks for a few interrupts, sharing the processor
+	 * with compute-bound threads, and print how many interrupts the
+	 * interactive thread waits on average between becoming ready and running.
+	 */
+	private static void responseTest(Scheduler scheduler, String name) {
+		final int numHogs = 8;
+		final int numInterrupts = 100000;
+		final int blockedInterrupts = 4;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+		KThread interactive = new KThread().setName("interactive");
+		for (int i = 0; i < numHogs; i++)
+			readyQueue.waitForAccess(new KThread().setName("hog " + i));
+		readyQueue.waitForAccess(interactive);
+
+		long readyTime = 0, totalWait = 0, numRuns = 0, wakeTime = -1;
+		for (long time = 0; time < numInterrupts; time++) {
+			if (time == wakeTime) {
+				readyQueue.waitForAccess(interactive);
+				readyTime = time;
+			}
+
+			KThread thread = readyQueue.nextThread();
+			if (thread == interactive) {
+				totalWait += time - readyTime;
+				numRuns++;
+				wakeTime = time + blockedInterrupts;
+				thread = readyQueue.nextThread();
+			}
+
+			scheduler.timerInterrupt(thread);
+			readyQueue.waitForAccess(thread);
+		}
+
+		while (readyQueue.nextThread() != null)
+			;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println(name + ": interactive thread ran " + numRuns
+				+ " times, waiting "
+				+ String.format("%.2f", (double) totalWait / numRuns)
+				+ " interrupts on average (" + numHogs
+				+ " compute-bound threads)");
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps one FIFO list per level.
+	 *
+	 * <p>
+	 * The lists are circular and doubly linked through <tt>Link</tt>s with a
+	 * sentinel per level, and a bitmap with one bit per level records which
+	 * lists are non-empty, so that the highest waiting thread is found with a
+	 * single bit scan. A boost is applied to a queue the next time it is used,
+	 * by splicing the lower lists onto the end of level 0.
+	 */
+	protected class LevelQueue extends ThreadQueue {
+		LevelQueue() {
+			lists = new Link[numLevels];
+			for (int i = 0; i < numLevels; i++) {
+				lists[i] = new Link(null);
+				lists[i].next = lists[i].prev = lists[i];
+			}
+
+			queueEpoch = epoch;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			applyBoost();
+
+			ThreadState state = getThreadState(thread);
+			int level = state.getLevel();
+
+			Link link = state.link;
+			if (link.next != null)
+				link = new Link(state);
+
+			Link list = lists[level];
+			link.prev = list.prev;
+			link.next = list;
+			list.prev.next = link;
+			list.prev = link;
+
+			nonEmpty |= 1 << level;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (nonEmpty == 0)
+				return null;
+
+			applyBoost();
+
+			int level = Integer.numberOfTrailingZeros(nonEmpty);
+			Link list = lists[level];
+			Link link = list.next;
+
+			list.next = link.next;
+			link.next.prev = list;
+			link.next = link.prev = null;
+
+			if (list.next == list)
+				nonEmpty &= ~(1 << level);
+
+			return link.state.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(nonEmpty == 0);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			applyBoost();
+
+			for (int i = 0; i < numLevels; i++) {
+				for (Link link = lists[i].next; link != lists[i]; link = link.next)
+					System.out.print(link.state.thread + " ");
+			}
+		}
+
+		/**
+		 * If a boost has happened since this queue was last used, move every
+		 * waiting thread to level 0, keeping higher levels ahead of lower
+		 * ones.
+		 */
+		private void applyBoost() {
+			if (queueEpoch == epoch)
+				return;
+
+			queueEpoch = epoch;
+
+			Link top = lists[0];
+			for (int i = 1; i < numLevels; i++) {
+				Link list = lists[i];
+				if (list.next == list)
+					continue;
+
+				list.next.prev = top.prev;
+				top.prev.next = list.next;
+				list.prev.next = top;
+				top.prev = list.prev;
+				list.next = list.prev = list;
+			}
+
+			if (nonEmpty != 0)
+				nonEmpty = 1;
+		}
+
+		/** The sentinel of the list for each level. */
+		private Link[] lists;
+
+		/** Bit <i>i</i> is set when the list for level <i>i</i> is not empty. */
+		private int nonEmpty = 0;
+
+		/** The boost epoch this queue's lists reflect. */
+		private long queueEpoch;
+	}
+
+	/**
+	 * A node in the list for one level of a <tt>LevelQueue</tt>. A list's
+	 * sentinel has no thread state.
+	 */
+	protected static class Link {
+		Link(ThreadState state) {
+			this.state = state;
+		}
+
+		Link prev = null, next = null;
+
+		final ThreadState state;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of that level's
+	 * quantum it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object for the specified thread,
+		 * at level 0.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.stateEpoch = epoch;
+		}
+
+		/**
+		 * Return the level of the associated thread, first resetting it if
+		 * there has been a boost since it was last looked at.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		public int getLevel() {
+			if (stateEpoch != epoch) {
+				stateEpoch = epoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Charge the associated thread for one timer interrupt, and move it
+		 * down a level when it has used the quantum of its current level.
+		 */
+		public void charge() {
+			int level = getLevel();
+
+			if (++used >= 1 << level) {
+				used = 0;
+				if (level < numLevels - 1)
+					this.level = level + 1;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The link used to wait in a queue, unless it is already in use. */
+		protected Link link = new Link(this);
+
+		/** The level of the associated thread, 0 being the highest. */
+		protected int level = 0;
+
+		/** The timer interrupts charged at the current level. */
+		protected int used = 0;
+
+		/** The boost epoch <tt>level</tt> and <tt>used</tt> belong to. */
+		protected long stateEpoch;
+	}
+
+	/** The number of levels. */
+	private int numLevels;
+
+	/** The number of timer interrupts between boosts. */
+	private int boostInterval;
+
+	private int interruptsSinceBoost = 0;
+
+	/** The number of boosts so far. */
+	private long epoch = 0;
+
+	/** The most levels a <tt>LevelQueue</tt> bitmap can hold. */
+	public static final int maxLevels = 32;
+}
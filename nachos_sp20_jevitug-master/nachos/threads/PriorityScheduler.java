@@ -2,9 +2,10 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -59,8 +60,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum
-				&& priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
 
 		getThreadState(thread).setPriority(priority);
 	}
@@ -72,7 +73,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == getPriorityMaximum())
 			ret = false;
 		else
 			setPriority(thread, priority + 1);
@@ -88,7 +89,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == getPriorityMinimum())
 			ret = false;
 		else
 			setPriority(thread, priority - 1);
@@ -97,6 +98,159 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Return the lowest priority a thread can be given.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the highest priority a thread can be given.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * Tests whether this module is working, and measures how the cost of
+	 * scheduling operations grows with the number of waiting threads and with
+	 * the length of chains of threads waiting on locks held by other waiting
+	 * threads. The threads are never forked; they only exist in the queues of
+	 * a private scheduler.
+	 */
+	public static void selfTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread[] threads = new KThread[16000];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new KThread().setName("test thread " + i);
+
+		// higher priorities first, FIFO among equal priorities
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		int[] priorities = { 1, 3, 3, 2 };
+		for (int i = 0; i < priorities.length; i++) {
+			scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+		}
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// donation through a chain of two locks, undone by lowering the donor
+		// and by releasing a lock
+		KThread a = threads[0], b = threads[1], c = threads[2];
+		scheduler.setPriority(a, 1);
+		scheduler.setPriority(b, 1);
+		scheduler.setPriority(c, 5);
+		ThreadQueue lock1 = scheduler.newThreadQueue(true);
+		ThreadQueue lock2 = scheduler.newThreadQueue(true);
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(b);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+		lock2.waitForAccess(c);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 5);
+		scheduler.setPriority(c, 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 2);
+
+		// a waiting thread moves up when it receives a donation
+		queue.waitForAccess(a);
+		scheduler.setPriority(threads[3], 3);
+		queue.waitForAccess(threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 2);
+		scheduler.setPriority(c, 4);
+		Lib.assertTrue(queue.nextThread() == a);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+
+		Lib.assertTrue(lock1.nextThread() == b);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 4);
+		Lib.assertTrue(lock2.nextThread() == c);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 1);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(lock2.nextThread() == null);
+
+		Random random = new Random(threads.length);
+
+		// the first pass warms up the JIT and is not reported
+		for (int pass = 0; pass < 2; pass++) {
+			for (int n = 1000; n <= threads.length; n *= 4)
+				stressTest(scheduler, threads, n, random, pass > 0);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Time <i>n</i> threads entering and leaving a queue, and priority
+	 * donation along a chain of <i>n</i> threads.
+	 */
+	private static void stressTest(PriorityScheduler scheduler,
+			KThread[] threads, int n, Random random, boolean print) {
+		// n threads enter and leave one queue, with random priorities and an
+		// owner receiving donations
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+		lock.acquire(threads[threads.length - 1]);
+
+		long start = System.nanoTime();
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < n; i++) {
+				scheduler.setPriority(threads[i], random
+						.nextInt(priorityMaximum + 1));
+				lock.waitForAccess(threads[i]);
+			}
+
+			int previous = priorityMaximum;
+			for (int i = 0; i < n; i++) {
+				KThread thread = lock.nextThread();
+				int priority = scheduler.getEffectivePriority(thread);
+				Lib.assertTrue(priority <= previous);
+				previous = priority;
+			}
+		}
+		long queueTime = (System.nanoTime() - start) / (10 * 3 * n);
+
+		// a chain of n threads, each holding a lock that the next thread is
+		// waiting for
+		ThreadQueue[] locks = new ThreadQueue[n];
+		for (int i = 0; i < n; i++) {
+			scheduler.setPriority(threads[i], priorityMinimum);
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(threads[i]);
+			if (i > 0)
+				locks[i - 1].waitForAccess(threads[i]);
+		}
+
+		start = System.nanoTime();
+		for (int round = 0; round < 10; round++) {
+			scheduler.setPriority(threads[n - 1], priorityMaximum);
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[0])
+					== priorityMaximum);
+			scheduler.setPriority(threads[n - 1], priorityMinimum);
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[0])
+					== priorityMinimum);
+		}
+		long chainTime = (System.nanoTime() - start) / (10 * 2 * n);
+
+		for (int i = 0; i < n; i++)
+			locks[i].nextThread();
+
+		if (print)
+			System.out.println("PriorityScheduler: " + n + " threads: "
+					+ queueTime + " ns per queue operation, " + chainTime
+					+ " ns per chain link");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -127,6 +281,13 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * The waiting threads are kept in a binary heap ordered by effective
+	 * priority, and among threads of the same effective priority, by the order
+	 * in which they started waiting. Each heap entry remembers its position, so
+	 * that when a waiting thread's effective priority changes, the thread can be
+	 * moved to its new position in logarithmic time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +306,20 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			QueueEntry entry = takeNextEntry();
+			if (entry == null) {
+				setOwner(null);
+				return null;
+			}
+
+			ThreadState next = entry.state;
+			remove(entry);
+			next.waiting.remove(entry);
+
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +329,160 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			QueueEntry entry = pickNextEntry();
+			if (entry == null)
+				return null;
+
+			return entry.state;
+		}
+
+		/**
+		 * Return the entry of the thread that <tt>nextThread()</tt> would
+		 * return.
+		 * 
+		 * @return the next entry, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected QueueEntry pickNextEntry() {
+			if (size == 0)
+				return null;
+
+			return heap[0];
+		}
+
+		/**
+		 * Choose the entry of the thread that <tt>nextThread()</tt> is about to
+		 * dequeue. This is <tt>pickNextEntry()</tt> unless the choice can only
+		 * be made once the thread is actually dequeued.
+		 * 
+		 * @return the next entry, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected QueueEntry takeNextEntry() {
+			return pickNextEntry();
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].state.thread + " ");
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if this queue does not transfer priority
+		 * or no thread is waiting.
+		 * 
+		 * @return the priority donated by this queue.
+		 */
+		protected int getDonation() {
+			if (!transferPriority || size == 0)
+				return priorityMinimum;
+
+			return heap[0].state.effectivePriority;
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, so that it
+		 * receives the priority donated by this queue.
+		 * 
+		 * @param state the new owner, or <tt>null</tt> if this queue has no
+		 * owner.
+		 */
+		void setOwner(ThreadState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			ThreadState previous = owner;
+			owner = state;
+
+			if (previous != null) {
+				previous.owned.remove(this);
+				previous.updateEffectivePriority();
+			}
+
+			if (state != null) {
+				state.owned.add(this);
+				state.updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Add a waiting thread to the heap.
+		 */
+		protected void add(QueueEntry entry) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			entry.arrival = numArrivals++;
+			entry.index = size;
+			heap[size++] = entry;
+
+			siftUp(entry);
+		}
+
+		/**
+		 * Remove a waiting thread from the heap.
+		 */
+		protected void remove(QueueEntry entry) {
+			int index = entry.index;
+			QueueEntry last = heap[--size];
+			heap[size] = null;
+			entry.index = -1;
+
+			if (last != entry) {
+				last.index = index;
+				heap[index] = last;
+				reposition(last);
+			}
+		}
+
+		/**
+		 * Move a waiting thread to its position in the heap after its effective
+		 * priority changed.
+		 */
+		protected void reposition(QueueEntry entry) {
+			siftUp(entry);
+			siftDown(entry);
+		}
+
+		private void siftUp(QueueEntry entry) {
+			int index = entry.index;
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!entry.before(heap[parent]))
+					break;
+
+				place(heap[parent], index);
+				index = parent;
+			}
+
+			place(entry, index);
+		}
+
+		private void siftDown(QueueEntry entry) {
+			int index = entry.index;
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && heap[child + 1].before(heap[child]))
+					child++;
+
+				if (!heap[child].before(entry))
+					break;
+
+				place(heap[child], index);
+				index = child;
+			}
+
+			place(entry, index);
+		}
+
+		private void place(QueueEntry entry, int index) {
+			heap[index] = entry;
+			entry.index = index;
 		}
 
 		/**
@@ -170,6 +490,52 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that most recently acquired this queue, if any. */
+		protected ThreadState owner = null;
+
+		/** The waiting threads, as a binary heap. */
+		private QueueEntry[] heap = new QueueEntry[8];
+
+		/** The number of waiting threads. */
+		private int size = 0;
+
+		/** The number of threads that have ever waited, to keep them FIFO. */
+		private long numArrivals = 0;
+	}
+
+	/**
+	 * A thread waiting in a <tt>PriorityQueue</tt>. A thread normally waits in
+	 * at most one queue at a time, but nothing prevents it from being in more,
+	 * so each wait gets its own entry.
+	 */
+	protected class QueueEntry {
+		QueueEntry(ThreadState state, PriorityQueue queue) {
+			this.state = state;
+			this.queue = queue;
+		}
+
+		/**
+		 * Test whether this entry should be dequeued before another in the
+		 * same queue.
+		 */
+		boolean before(QueueEntry entry) {
+			int priority = state.effectivePriority;
+			int otherPriority = entry.state.effectivePriority;
+
+			return priority > otherPriority
+					|| (priority == otherPriority && arrival < entry.arrival);
+		}
+
+		final ThreadState state;
+
+		final PriorityQueue queue;
+
+		/** The order in which this thread started waiting. */
+		long arrival;
+
+		/** This entry's position in the queue. */
+		int index = -1;
 	}
 
 	/**
@@ -177,6 +543,18 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached, and only recomputed when something it
+	 * depends on changes: the thread's own priority, the set of queues it
+	 * owns, or the highest effective priority waiting in one of those queues.
+	 * A change is then pushed along the chain of owners, stopping at the first
+	 * thread whose effective priority does not change. A single change moves
+	 * every effective priority along the chain in the same direction, and
+	 * priorities are bounded, so this also terminates on a cycle of owners
+	 * (which can only arise from a deadlock). As a further bound, one change
+	 * recomputes at most twice as many effective priorities as there are
+	 * threads.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -188,6 +566,7 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public ThreadState(KThread thread) {
 			this.thread = thread;
+			numThreadStates++;
 
 			setPriority(priorityDefault);
 		}
@@ -207,8 +586,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +600,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +616,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			QueueEntry entry = new QueueEntry(this, waitQueue);
+			waiting.add(entry);
+
+			int donation = waitQueue.getDonation();
+			waitQueue.add(entry);
+
+			if (waitQueue.owner != null && waitQueue.getDonation() != donation)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +637,78 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, and push
+		 * any change along the chain of queue owners. The chain is followed
+		 * iteratively, so long chains do not use stack space.
+		 */
+		protected void updateEffectivePriority() {
+			boolean outermost = (propagationSteps < 0);
+			if (outermost)
+				propagationSteps = 2 * numThreadStates;
+
+			ThreadState state = this;
+			while (state != null && propagationSteps > 0) {
+				propagationSteps--;
+				state = state.recomputeEffectivePriority();
+			}
+
+			if (outermost)
+				propagationSteps = -1;
+		}
+
+		/**
+		 * Compute the effective priority of the associated thread from its
+		 * priority and the priority donated by the queues it owns.
+		 * 
+		 * @return the effective priority.
+		 */
+		protected int computeEffectivePriority() {
+			int effective = priority;
+			for (PriorityQueue queue : owned)
+				effective = Math.max(effective, queue.getDonation());
+
+			return effective;
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread and move it
+		 * within the queues it is waiting in.
+		 * 
+		 * @return the owner of a queue whose donation changed as a result, or
+		 * <tt>null</tt> if there is none.
+		 */
+		private ThreadState recomputeEffectivePriority() {
+			int effective = computeEffectivePriority();
+			if (effective == effectivePriority)
+				return null;
+
+			int[] donations = new int[waiting.size()];
+			for (int i = 0; i < donations.length; i++)
+				donations[i] = waiting.get(i).queue.getDonation();
+
+			effectivePriority = effective;
+
+			ThreadState next = null;
+			for (int i = 0; i < donations.length; i++) {
+				PriorityQueue queue = waiting.get(i).queue;
+				queue.reposition(waiting.get(i));
+
+				if (queue.owner == null || queue.getDonation() == donations[i])
+					continue;
+
+				// a thread waiting in several queues is rare; recurse for all
+				// but the first owner
+				if (next == null)
+					next = queue.owner;
+				else
+					queue.owner.updateEffectivePriority();
+			}
+
+			return next;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +716,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = priorityMinimum - 1;
+
+		/** The queues the associated thread is waiting in. */
+		protected ArrayList<QueueEntry> waiting = new ArrayList<QueueEntry>(1);
+
+		/** The queues that transfer priority to the associated thread. */
+		protected HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
 	}
+
+	/** The number of <tt>ThreadState</tt> objects created. */
+	private int numThreadStates = 0;
+
+	/**
+	 * The number of effective priorities the change being propagated may still
+	 * recompute, or -1 if no change is being propagated.
+	 */
+	private int propagationSteps = -1;
 }
@@ -151,4 +151,17 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Notify this scheduler that a timer interrupt occurred while the specified
+	 * thread was running, just before the thread is made to yield. Called by
+	 * <tt>Alarm.timerInterrupt()</tt> with interrupts disabled. Schedulers
+	 * that charge threads for the processor time they use can override this;
+	 * by default it does nothing.
+	 * 
+	 * @param thread the thread that was running.
+	 */
+	public void timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
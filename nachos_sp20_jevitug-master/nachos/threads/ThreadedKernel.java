@@ -55,7 +55,14 @@ public class ThreadedKernel extends Kernel {
 		//}
 		//Alarm.alarmTest1();
 		//Alarm.alarmTest2();
+		//Alarm.benchmark();
 		//Rendezvous.selfTest();
+		//InterruptQueue.selfTest();
+		//PhysicalMemory.selfTest();
+		//KThread.yieldBenchmark();
+		//PriorityScheduler.selfTest();
+		//LotteryScheduler.selfTest();
+		//MLFQScheduler.selfTest();
 	}
 
 
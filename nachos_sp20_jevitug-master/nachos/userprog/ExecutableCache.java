@@ -0,0 +1,306 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the contents of recently executed files in kernel memory, so that
+ * <tt>exec</tt> does not have to go back to the file system for them.
+ *
+ * <p>
+ * The first time a file is executed it is read whole, with a single read.
+ * Every <tt>Coff</tt> for it is then parsed from that image, and loads its
+ * pages by copying them out of it. A process that executes a file another
+ * process is still reading waits for that read instead of starting one of
+ * its own; files that are not being read do not wait for each other.
+ *
+ * <p>
+ * The file system has no modification times, so an image is only as fresh
+ * as the kernel keeps it: <tt>forget()</tt> must be called before a file is
+ * created, opened or removed, and after every write to it, since the file
+ * may have been executed again while it was open. Changes made outside of
+ * Nachos are not noticed. Images are dropped least recently used first to keep the
+ * cache within its size.
+ */
+public class ExecutableCache {
+	/**
+	 * Create an empty cache.
+	 *
+	 * @param maxBytes the most file contents to keep.
+	 */
+	public ExecutableCache(int maxBytes) {
+		this.maxBytes = maxBytes;
+
+		lock = new Lock();
+		imageRead = new Condition(lock);
+	}
+
+	/**
+	 * Open an executable, reading it from the file system only if its image
+	 * is not cached. The returned loader is the caller's own, and must be
+	 * closed when the process is done with it.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return a loader for the executable, or <tt>null</tt> if the file does
+	 * not exist or is not a valid executable.
+	 */
+	public Coff open(String name) {
+		byte[] image = getImage(name);
+		if (image == null)
+			return null;
+
+		try {
+			return new ImageCoff(image);
+		}
+		catch (EOFException e) {
+			Lib.debug(dbgProcess, "\tcoff load failed");
+			return null;
+		}
+	}
+
+	/**
+	 * Drop the cached image of a file, because the file may be about to
+	 * change or has just been written. A read of the file already under way
+	 * is not cached either.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void forget(String name) {
+		lock.acquire();
+
+		Image image = images.remove(name);
+		if (image != null && image.contents != null)
+			cachedBytes -= image.contents.length;
+
+		lock.release();
+	}
+
+	private byte[] getImage(String name) {
+		lock.acquire();
+
+		Image image;
+		while ((image = images.get(name)) != null && image.contents == null)
+			imageRead.sleep();
+
+		if (image != null) {
+			lock.release();
+			return image.contents;
+		}
+
+		// read the file without the lock, so other files can be executed
+		image = new Image();
+		images.put(name, image);
+		lock.release();
+
+		byte[] contents = readFile(name);
+
+		lock.acquire();
+		if (images.get(name) == image) {
+			if (contents == null || contents.length > maxBytes) {
+				images.remove(name);
+			}
+			else {
+				image.contents = contents;
+				cachedBytes += contents.length;
+				trim();
+			}
+		}
+		imageRead.wakeAll();
+		lock.release();
+
+		return contents;
+	}
+
+	private byte[] readFile(String name) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return null;
+		}
+
+		byte[] contents = new byte[Math.max(file.length(), 0)];
+		int amount = file.read(0, contents, 0, contents.length);
+		file.close();
+
+		if (amount != contents.length) {
+			Lib.debug(dbgProcess, "\tread failed");
+			return null;
+		}
+
+		Machine.countCOFFReads(Lib.divRoundUp(contents.length,
+				Processor.pageSize));
+
+		return contents;
+	}
+
+	/**
+	 * Drop the least recently used images until the cache is within its
+	 * size. The caller must hold <tt>lock</tt>.
+	 */
+	private void trim() {
+		Iterator<Image> it = images.values().iterator();
+		while (cachedBytes > maxBytes && it.hasNext()) {
+			Image image = it.next();
+			if (image.contents == null)
+				continue;
+
+			cachedBytes -= image.contents.length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * A COFF loader that reads an executable held in memory, checking it the
+	 * same way <tt>Coff</tt> checks a file.
+	 */
+	private static class ImageCoff extends Coff {
+		ImageCoff(byte[] image) throws EOFException {
+			if (image.length < headerLength + aoutHeaderLength) {
+				Lib.debug(dbgProcess, "\tfile is not executable");
+				throw new EOFException();
+			}
+
+			int magic = Lib.bytesToUnsignedShort(image, 0);
+			int numSections = Lib.bytesToUnsignedShort(image, 2);
+			int optionalHeaderLength = Lib.bytesToUnsignedShort(image, 16);
+			int flags = Lib.bytesToUnsignedShort(image, 18);
+			entryPoint = Lib.bytesToInt(image, headerLength + 16);
+
+			if (magic != 0x0162 || numSections < 2 || numSections > 10
+					|| (flags & 0x0003) != 0x0003) {
+				Lib.debug(dbgProcess, "\tbad executable header");
+				throw new EOFException();
+			}
+
+			int offset = headerLength + optionalHeaderLength;
+
+			sections = new CoffSection[numSections];
+			for (int s = 0; s < numSections; s++) {
+				sections[s] = new ImageSection(this, image, offset + s
+						* CoffSection.headerLength);
+			}
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		public void close() {
+			sections = null;
+		}
+	}
+
+	/**
+	 * A section of an executable held in memory.
+	 */
+	private static class ImageSection extends CoffSection {
+		ImageSection(Coff coff, byte[] image, int headerOffset)
+				throws EOFException {
+			super(coff, null, false, false, 0, 0);
+
+			if (headerOffset + headerLength > image.length) {
+				Lib.debug(dbgProcess, "\tsection header truncated");
+				throw new EOFException();
+			}
+
+			name = Lib.bytesToString(image, headerOffset, 8);
+			int vaddr = Lib.bytesToInt(image, headerOffset + 12);
+			size = Lib.bytesToInt(image, headerOffset + 16);
+			contentOffset = Lib.bytesToInt(image, headerOffset + 20);
+			int numRelocations = Lib.bytesToUnsignedShort(image,
+					headerOffset + 32);
+			int flags = Lib.bytesToInt(image, headerOffset + 36);
+
+			switch (flags & 0x0FFF) {
+			case 0x0020:
+				executable = true;
+				readOnly = true;
+				initialized = true;
+				break;
+			case 0x0040:
+				executable = false;
+				readOnly = false;
+				initialized = true;
+				break;
+			case 0x0080:
+				executable = false;
+				readOnly = false;
+				initialized = false;
+				break;
+			case 0x0100:
+				executable = false;
+				readOnly = true;
+				initialized = true;
+				break;
+			default:
+				Lib.debug(dbgProcess, "\tinvalid section flags: " + flags);
+				throw new EOFException();
+			}
+
+			if (numRelocations != 0 || vaddr % Processor.pageSize != 0
+					|| size < 0 || initialized && (contentOffset < 0
+							|| contentOffset + size > image.length)) {
+				Lib.debug(dbgProcess, "\tinvalid section " + name);
+				throw new EOFException();
+			}
+
+			this.image = image;
+			numPages = Lib.divRoundUp(size, Processor.pageSize);
+			firstVPN = vaddr / Processor.pageSize;
+		}
+
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn >= 0 && spn < numPages);
+			Lib.assertTrue(ppn >= 0
+					&& ppn < Machine.processor().getNumPhysPages());
+
+			int pageSize = Processor.pageSize;
+			PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+			int paddr = ppn * pageSize;
+			int initlen = 0;
+
+			if (initialized)
+				initlen = Math.min(size - spn * pageSize, pageSize);
+
+			if (initlen > 0)
+				memory.write(paddr, image, contentOffset + spn * pageSize,
+						initlen);
+			memory.fill(paddr + initlen, pageSize - initlen, (byte) 0);
+
+			Machine.processor().invalidateInstructionCache(ppn);
+		}
+
+		private byte[] image;
+
+		private int contentOffset, size;
+	}
+
+	/** The contents of a file, or <tt>null</tt> while it is being read. */
+	private static class Image {
+		byte[] contents = null;
+	}
+
+	private int maxBytes;
+
+	private int cachedBytes = 0;
+
+	/** The images by file name, least recently used first. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	/** Protects <tt>images</tt> and <tt>cachedBytes</tt>. */
+	private Lock lock;
+
+	/** Signalled when a file has been read. */
+	private Condition imageRead;
+
+	private static final int headerLength = 20;
+
+	private static final int aoutHeaderLength = 28;
+
+	private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,169 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which physical pages are free. The free pages are kept on
+ * a stack of page numbers, and every page records its position on the stack
+ * (or -1 if it is in use), so the positions double as a bitmap of free pages.
+ * Taking or giving back a page, whether from the top of the stack or any
+ * other position, takes constant time.
+ *
+ * <p>
+ * A frame allocator is not synchronized; <tt>UserKernel</tt> only uses it
+ * while holding <tt>UserKernel.physLock</tt>.
+ */
+public class FrameAllocator {
+	/**
+	 * Create an allocator for the specified number of physical pages, all of
+	 * them free. Lower page numbers are handed out first.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public FrameAllocator(int numFrames) {
+		stack = new int[numFrames];
+		position = new int[numFrames];
+
+		for (int i = 0; i < numFrames; i++) {
+			stack[i] = numFrames - 1 - i;
+			position[numFrames - 1 - i] = i;
+		}
+		numFree = numFrames;
+	}
+
+	/**
+	 * Take a free physical page.
+	 *
+	 * @return the physical page number, or -1 if there are none.
+	 */
+	public int allocate() {
+		if (numFree == 0)
+			return -1;
+
+		int ppn = stack[--numFree];
+		position[ppn] = -1;
+
+		return ppn;
+	}
+
+	/**
+	 * Take <i>count</i> free physical pages, or none at all if there are not
+	 * enough.
+	 *
+	 * @param ppns the array to store the physical page numbers in.
+	 * @param offset the first element of <i>ppns</i> to store to.
+	 * @param count the number of pages to take.
+	 * @return <tt>true</tt> if the pages were taken.
+	 */
+	public boolean allocate(int[] ppns, int offset, int count) {
+		Lib.assertTrue(offset >= 0 && count >= 0
+				&& offset + count <= ppns.length);
+
+		if (count > numFree)
+			return false;
+
+		for (int i = offset; i < offset + count; i++) {
+			ppns[i] = stack[--numFree];
+			position[ppns[i]] = -1;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Take a run of <i>count</i> free physical pages with consecutive page
+	 * numbers. The lowest such run is chosen.
+	 *
+	 * @param count the number of pages to take.
+	 * @return the first physical page number of the run, or -1 if there is
+	 * no free run that long.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		if (count > numFree)
+			return -1;
+
+		int runLength = 0;
+		for (int ppn = 0; ppn < position.length; ppn++) {
+			if (position[ppn] == -1) {
+				runLength = 0;
+				continue;
+			}
+
+			if (++runLength == count) {
+				int first = ppn - count + 1;
+				for (int i = first; i <= ppn; i++)
+					remove(i);
+
+				return first;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Give back a physical page.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void free(int ppn) {
+		Lib.assertTrue(position[ppn] == -1, "page " + ppn + " is already free");
+
+		stack[numFree] = ppn;
+		position[ppn] = numFree++;
+	}
+
+	/**
+	 * Give back <i>count</i> physical pages.
+	 *
+	 * @param ppns the physical page numbers.
+	 * @param offset the first element of <i>ppns</i> to give back.
+	 * @param count the number of pages to give back.
+	 */
+	public void free(int[] ppns, int offset, int count) {
+		for (int i = offset; i < offset + count; i++)
+			free(ppns[i]);
+	}
+
+	/**
+	 * Test whether a physical page is free.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page is free.
+	 */
+	public boolean isFree(int ppn) {
+		return position[ppn] != -1;
+	}
+
+	/**
+	 * Return the number of free physical pages.
+	 *
+	 * @return the number of free pages.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Take a free page off the stack, wherever it is, by moving the top of
+	 * the stack into its place.
+	 */
+	private void remove(int ppn) {
+		int i = position[ppn];
+		int top = stack[--numFree];
+
+		stack[i] = top;
+		position[top] = i;
+		position[ppn] = -1;
+	}
+
+	/** The free physical pages; the first <tt>numFree</tt> are valid. */
+	private int[] stack;
+
+	/** The position of each physical page on the stack, or -1 if in use. */
+	private int[] position;
+
+	private int numFree;
+}
@@ -3,13 +3,15 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 /**
  * A kernel that can support multiple user processes.
  */
 public class UserKernel extends ThreadedKernel {
-	//static linked list to manage free physical pages of memory
-	public static LinkedList<Integer> physPages;
+	//static allocator to manage free physical pages of memory
+	public static FrameAllocator physPages;
 	//lock used for controlling race conditions for physical pages in UserProcess.java
 	public static Lock physLock;
 	//lock used for controlling race conditions in updating process ID's for Part 3
@@ -41,12 +43,14 @@ public class UserKernel extends ThreadedKernel {
 			}
 		});
 		//added for proj2
-		physPages = new LinkedList<Integer>();
-		//add phyiscal pages in memory to physPages LinkedList
-		for(Integer i = 0; i < Machine.processor().getNumPhysPages(); i++){
-			physPages.add(i);
-		}
+		//every physical page in memory starts out free
+		physPages = new FrameAllocator(Machine.processor().getNumPhysPages());
 		physLock = new Lock();
+		sharedPages = new HashMap<String, SharedPage[][]>();
+		sharedFrames = new SharedPage[Machine.processor().getNumPhysPages()];
+		unreferencedPages = new LinkedHashSet<SharedPage>();
+		executableCache = new ExecutableCache(Config.getInteger(
+				"UserKernel.executableCacheBytes", 1 << 20));
 		//adding for part 3
 		pidLock = new Lock();
 		pCount = 0;
@@ -61,7 +65,7 @@ public class UserKernel extends ThreadedKernel {
 
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
-		//System.out.println("There are " + physPages.size() + " pPages available");
+		//System.out.println("There are " + physPages.getNumFree() + " pPages available");
 		char c;
 
 		do {
@@ -141,6 +145,308 @@ public class UserKernel extends ThreadedKernel {
 		super.terminate();
 	}
 
+	/**
+	 * Take a free physical page. If there are none, the unreferenced shared
+	 * executable page that was released longest ago is dropped from the
+	 * cache and its page is taken instead.
+	 * 
+	 * @return the physical page number, or -1 if physical memory is full.
+	 */
+	public static int allocatePage() {
+		physLock.acquire();
+		int ppn = allocatePageLocked();
+		physLock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Take every physical page a new process running the specified
+	 * executable starts with, acquiring <tt>physLock</tt> only once. The
+	 * pages of the initialized sections come first, in section order, each
+	 * as <tt>getSharedPage()</tt> would return it. They are followed by
+	 * <i>numPrivate</i> free pages, which have consecutive page numbers if
+	 * there is a long enough free run.
+	 * 
+	 * @param name the name of the executable file.
+	 * @param coff the executable, opened from <i>name</i>.
+	 * @param numPrivate the number of private pages to take.
+	 * @return the physical page numbers, or <tt>null</tt> if physical memory
+	 * is full, in which case no page is taken.
+	 */
+	public static int[] allocateProcessPages(String name, Coff coff,
+			int numPrivate) {
+		int numShared = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			if (coff.getSection(s).isInitialzed())
+				numShared += coff.getSection(s).getLength();
+		}
+
+		int[] ppns = new int[numShared + numPrivate];
+
+		physLock.acquire();
+
+		int n = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isInitialzed())
+				continue;
+
+			for (int spn = 0; spn < section.getLength(); spn++) {
+				ppns[n] = getSharedPageLocked(name, coff, s, spn);
+				if (ppns[n] == -1) {
+					releasePagesLocked(ppns, n);
+					physLock.release();
+					return null;
+				}
+				n++;
+			}
+		}
+
+		if (!allocateRunLocked(ppns, n, numPrivate)) {
+			releasePagesLocked(ppns, n);
+			physLock.release();
+			return null;
+		}
+
+		physLock.release();
+
+		return ppns;
+	}
+
+	/**
+	 * Return a physical page holding page <i>spn</i> of section <i>s</i> of
+	 * the executable <i>name</i>, and add a reference to it. The page is only
+	 * loaded if it is not already cached, so every process running the same
+	 * executable shares it; it must be mapped read-only.
+	 * 
+	 * @param name the name of the executable file.
+	 * @param coff the executable, opened from <i>name</i>.
+	 * @param s the section number.
+	 * @param spn the page number within the section.
+	 * @return the physical page number, or -1 if physical memory is full.
+	 */
+	public static int getSharedPage(String name, Coff coff, int s, int spn) {
+		physLock.acquire();
+		int ppn = getSharedPageLocked(name, coff, s, spn);
+		physLock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Release a physical page taken with <tt>allocatePage()</tt> or
+	 * <tt>getSharedPage()</tt>. A shared page stays cached after its last
+	 * reference is released, until its memory is needed.
+	 * 
+	 * @param ppn the physical page number.
+	 */
+	public static void releasePage(int ppn) {
+		physLock.acquire();
+		releasePageLocked(ppn);
+		physLock.release();
+	}
+
+	/**
+	 * Release the first <i>count</i> physical pages of an array, acquiring
+	 * <tt>physLock</tt> only once.
+	 * 
+	 * @param ppns the physical page numbers.
+	 * @param count the number of pages to release.
+	 * @see #releasePage
+	 */
+	public static void releasePages(int[] ppns, int count) {
+		physLock.acquire();
+		releasePagesLocked(ppns, count);
+		physLock.release();
+	}
+
+	/**
+	 * Drop every cached page and the cached image of the specified
+	 * executable, because the file may be about to change or has just been
+	 * written. Processes already sharing the pages keep them.
+	 * 
+	 * @param name the name of the file.
+	 */
+	public static void forgetExecutable(String name) {
+		physLock.acquire();
+		forgetExecutableLocked(name);
+		physLock.release();
+
+		executableCache.forget(name);
+	}
+
+	private static int getSharedPageLocked(String name, Coff coff, int s,
+			int spn) {
+		CoffSection section = coff.getSection(s);
+
+		// a cached layout that doesn't match belongs to an older file
+		SharedPage[][] pages = sharedPages.get(name);
+		if (pages != null && (pages.length != coff.getNumSections()
+				|| (pages[s] != null && pages[s].length != section.getLength()))) {
+			forgetExecutableLocked(name);
+			pages = null;
+		}
+		if (pages == null) {
+			pages = new SharedPage[coff.getNumSections()][];
+			sharedPages.put(name, pages);
+		}
+		if (pages[s] == null)
+			pages[s] = new SharedPage[section.getLength()];
+
+		SharedPage page = pages[s][spn];
+		if (page == null) {
+			int ppn = allocatePageLocked();
+			if (ppn == -1)
+				return -1;
+
+			section.loadPage(spn, ppn);
+
+			page = new SharedPage(name, s, spn, ppn);
+			pages[s][spn] = page;
+			sharedFrames[ppn] = page;
+		}
+		else if (page.refCount == 0) {
+			unreferencedPages.remove(page);
+		}
+
+		page.refCount++;
+
+		return page.ppn;
+	}
+
+	private static void releasePageLocked(int ppn) {
+		SharedPage page = sharedFrames[ppn];
+		if (page == null) {
+			physPages.free(ppn);
+		}
+		else {
+			Lib.assertTrue(page.refCount > 0);
+
+			if (--page.refCount == 0) {
+				if (page.cached) {
+					unreferencedPages.add(page);
+				}
+				else {
+					sharedFrames[ppn] = null;
+					physPages.free(ppn);
+				}
+			}
+		}
+	}
+
+	private static void releasePagesLocked(int[] ppns, int count) {
+		for (int i = 0; i < count; i++)
+			releasePageLocked(ppns[i]);
+	}
+
+	private static int allocatePageLocked() {
+		int ppn = physPages.allocate();
+		if (ppn != -1)
+			return ppn;
+
+		Iterator<SharedPage> it = unreferencedPages.iterator();
+		if (!it.hasNext())
+			return -1;
+
+		SharedPage page = it.next();
+		it.remove();
+
+		sharedPages.get(page.name)[page.section][page.spn] = null;
+		sharedFrames[page.ppn] = null;
+
+		return page.ppn;
+	}
+
+	/**
+	 * Take <i>count</i> private pages, preferring a contiguous run, then any
+	 * free pages, then cached executable pages. Takes all of them or none.
+	 */
+	private static boolean allocateRunLocked(int[] ppns, int offset, int count) {
+		if (count == 0)
+			return true;
+
+		int first = physPages.allocateContiguous(count);
+		if (first != -1) {
+			for (int i = 0; i < count; i++)
+				ppns[offset + i] = first + i;
+
+			return true;
+		}
+
+		if (count > physPages.getNumFree() + unreferencedPages.size())
+			return false;
+
+		int numFree = physPages.getNumFree();
+		if (count <= numFree)
+			return physPages.allocate(ppns, offset, count);
+
+		physPages.allocate(ppns, offset, numFree);
+		for (int i = offset + numFree; i < offset + count; i++)
+			ppns[i] = allocatePageLocked();
+
+		return true;
+	}
+
+	private static void forgetExecutableLocked(String name) {
+		SharedPage[][] pages = sharedPages.remove(name);
+		if (pages == null)
+			return;
+
+		for (int s = 0; s < pages.length; s++) {
+			if (pages[s] == null)
+				continue;
+
+			for (int spn = 0; spn < pages[s].length; spn++) {
+				SharedPage page = pages[s][spn];
+				if (page == null)
+					continue;
+
+				page.cached = false;
+				if (page.refCount == 0) {
+					unreferencedPages.remove(page);
+					sharedFrames[page.ppn] = null;
+					physPages.free(page.ppn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A physical page holding a page of an executable, shared by every
+	 * process running it.
+	 */
+	private static class SharedPage {
+		SharedPage(String name, int section, int spn, int ppn) {
+			this.name = name;
+			this.section = section;
+			this.spn = spn;
+			this.ppn = ppn;
+		}
+
+		String name;
+
+		int section, spn, ppn;
+
+		/** The number of processes that have this page mapped. */
+		int refCount = 0;
+
+		/** False once the page has been dropped from the cache. */
+		boolean cached = true;
+	}
+
+	/** The cached pages of each executable, by section and page number. */
+	private static HashMap<String, SharedPage[][]> sharedPages;
+
+	/** The shared page held by each physical page, or <tt>null</tt>. */
+	private static SharedPage[] sharedFrames;
+
+	/** Cached pages no process has mapped, least recently released first. */
+	private static LinkedHashSet<SharedPage> unreferencedPages;
+
+	/** The contents of recently executed files. */
+	public static ExecutableCache executableCache;
+
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
@@ -6,7 +6,6 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.io.EOFException;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -162,8 +161,8 @@ public class UserProcess {
 				//&& offset + length <= data.length);
 
 		/*Adding code for part 2*/
-		byte[] memory = Machine.processor().getMemory();
-		if(vaddr < 0 || vaddr >= memory.length){
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		if(vaddr < 0 || vaddr >= memory.getSize()){
 			return 0;
 		}
 		//copied from lib assert
@@ -182,7 +181,7 @@ public class UserProcess {
 		//calculate the physical address
 		int addy = pageTable[vpn].ppn * pageSize + vOffset;
 		//if TranslationEntry is invalid or out of range
-		if(pageTable[vpn].valid == false || addy < 0 || addy >= memory.length){
+		if(pageTable[vpn].valid == false || addy < 0 || addy >= memory.getSize()){
 			pageTable[vpn].used = false;
 			return 0;
 		}
@@ -202,7 +201,7 @@ public class UserProcess {
 			if(pageSize < remainder + secOff){
 				//call arraycopy for read, then increment bytesWritten, offset, 
 				//and remaining bytes
-				System.arraycopy(memory, currAddy, data, firstOff, pageSize - secOff);
+				memory.read(currAddy, data, firstOff, pageSize - secOff);
 				bytesWritten = bytesWritten + pageSize - secOff;
 				remainder = remainder - bytesWritten;
 				firstOff = firstOff + pageSize - secOff;
@@ -226,7 +225,7 @@ public class UserProcess {
 			}
 			//if remaining bytes fit on one page
 			else{
-				System.arraycopy(memory, currAddy, data, firstOff, remainder);
+				memory.read(currAddy, data, firstOff, remainder);
 				bytesWritten = bytesWritten + remainder;
 				firstOff = firstOff + remainder;
 			}
@@ -277,23 +276,23 @@ public class UserProcess {
 			return 0;
 		}
 		
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		
 		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length){
+		if (vaddr < 0 || vaddr >= memory.getSize()){
 			return 0;
 		}
 		//get page number and offset components from provided vaddr
 		int vpn = Machine.processor().pageFromAddress(vaddr);
 		int vOffset = Machine.processor().offsetFromAddress(vaddr);
-		//check if read-only (cannot write)
-		if(pageTable[vpn].readOnly == true){
+		//check if read-only (cannot write), copying it if it is shared
+		if(pageTable[vpn].valid == false || !makeWritable(vpn)){
 			return 0;
 		}
 		pageTable[vpn].used = true;
 		int addy = pageTable[vpn].ppn * pageSize + vOffset;  
 		//if TranslationEntry is invalid or out of range
-		if(pageTable[vpn].valid == false || addy < 0 || addy >= memory.length){
+		if(pageTable[vpn].valid == false || addy < 0 || addy >= memory.getSize()){
 			pageTable[vpn].used = false;
 			return 0;
 		}
@@ -312,7 +311,8 @@ public class UserProcess {
 			//if we need more than one page
 			if(pageSize < remainder + secOff){
 				//arraycopy, then increment bytesWritten, offset, remaining bytes 
-				System.arraycopy(data, firstOff, memory, currAddy, pageSize-secOff);
+				memory.write(currAddy, data, firstOff, pageSize-secOff);
+				Machine.processor().invalidateInstructionCache(currPhys);
 				bytesWritten = bytesWritten + pageSize - secOff;
 				remainder = remainder - bytesWritten;
 				firstOff = firstOff + pageSize - secOff;
@@ -324,7 +324,7 @@ public class UserProcess {
 				else{
 					//need currVir-1 since we're looking ahead (++currVir)
 					pageTable[currVir - 1].used = false;
-					if(pageTable[currVir].valid == false || pageTable[currVir].readOnly == true){
+					if(pageTable[currVir].valid == false || !makeWritable(currVir)){
 						break;
 					}
 					pageTable[currVir].used = true;
@@ -336,7 +336,8 @@ public class UserProcess {
 			}
 			//if everything fits on one page
 			else{
-				System.arraycopy(data, firstOff, memory, currAddy, remainder);
+				memory.write(currAddy, data, firstOff, remainder);
+				Machine.processor().invalidateInstructionCache(currPhys);
 				bytesWritten = bytesWritten + remainder;
 				firstOff = firstOff + remainder;
 			}
@@ -356,7 +357,9 @@ public class UserProcess {
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
 	 * its header information, and copies sections and arguments into this
-	 * process's virtual memory.
+	 * process's virtual memory. The executable is read through
+	 * <tt>UserKernel.executableCache</tt>, so a file that was executed recently
+	 * is not read again.
 	 * 
 	 * @param name the name of the file containing the executable.
 	 * @param args the arguments to pass to the executable.
@@ -365,20 +368,12 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		coff = UserKernel.executableCache.open(name);
+		if(coff == null){
 			return false;
 		}
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		executableName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -444,6 +439,13 @@ public class UserProcess {
 	 * memory. If this returns successfully, the process will definitely be run
 	 * (this is the last step in process initialization that can fail).
 	 * 
+	 * <p>
+	 * Pages of initialized sections are shared with every other process
+	 * running the same executable (see <tt>UserKernel.getSharedPage()</tt>).
+	 * They are mapped read-only; pages of writable sections are copied on the
+	 * first write to them. Every page the process starts with is taken in one
+	 * call to <tt>UserKernel.allocateProcessPages()</tt>.
+	 * 
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
@@ -453,6 +455,29 @@ public class UserProcess {
 			return false;
 		}
 
+		//uninitialized sections, the stack and the arguments get private
+		//pages, everything else is shared
+		int numPrivate = stackPages + 1;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			if(!coff.getSection(s).isInitialzed()){
+				numPrivate += coff.getSection(s).getLength();
+			}
+		}
+		int[] ppns = UserKernel.allocateProcessPages(executableName, coff, numPrivate);
+		if(ppns == null){
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+		int nextShared = 0;
+		int firstPrivate = ppns.length - numPrivate;
+		int nextPrivate = firstPrivate;
+
+		for(int i = 0; i < pageTable.length; i++){
+			pageTable[i].valid = false;
+		}
+		copyOnWrite = new boolean[pageTable.length];
+
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -462,32 +487,50 @@ public class UserProcess {
 
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
-
-				// for now, just assume virtual addresses=physical addresses
-				//section.loadPage(i, vpn);
 				TranslationEntry tEnt = pageTable[vpn];
-				
-				//critical section?
-				UserKernel.physLock.acquire();
-
-				//check if there's enough memory	
-				Integer temp = UserKernel.physPages.poll();
-				if(temp == null){
-					unloadSections();
-					return false;	
+
+				//initialized pages come from the shared cache, and writable
+				//ones are only copied if the process writes to them
+				if(section.isInitialzed()){
+					tEnt.ppn = ppns[nextShared++];
+					tEnt.readOnly = true;
+					copyOnWrite[vpn] = !section.isReadOnly();
+				}
+				else{
+					tEnt.ppn = ppns[nextPrivate++];
+					tEnt.readOnly = section.isReadOnly();
 				}
-				UserKernel.physLock.release();
-				//check if CoffSection is marked as read-only
-				tEnt.readOnly = section.isReadOnly();
-				//set physical page number to 'temp'
-				tEnt.ppn = temp;
-				//set valid to true
+				tEnt.used = false;
+				tEnt.dirty = false;
 				tEnt.valid = true;
-				//load this page into physical memory
-				section.loadPage(i, tEnt.ppn);
 			}
 		}
 
+		//the stack and argument pages are private too
+		for(int vpn = numPages - stackPages - 1; vpn < numPages; vpn++){
+			TranslationEntry tEnt = pageTable[vpn];
+			tEnt.ppn = ppns[nextPrivate++];
+			tEnt.readOnly = false;
+			tEnt.used = false;
+			tEnt.dirty = false;
+			tEnt.valid = true;
+		}
+
+		//private pages start out zeroed, a whole run of consecutive
+		//physical pages at a time
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		for(int i = firstPrivate; i < ppns.length; ){
+			int j = i + 1;
+			while(j < ppns.length && ppns[j] == ppns[j - 1] + 1){
+				j++;
+			}
+			memory.fill(ppns[i] * pageSize, (j - i) * pageSize, (byte) 0);
+			for(int k = i; k < j; k++){
+				Machine.processor().invalidateInstructionCache(ppns[k]);
+			}
+			i = j;
+		}
+
 		return true;
 	}
 
@@ -495,15 +538,7 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		//acquire lock to avoid race condition
-		UserKernel.physLock.acquire();
-		//go through and deallocate physical pages by re-adding the ppn
-		//to phyPages LinkedList
-		//NOTE to self: numPages is number of occupied contigious pages
-		for(int i = 0; i < numPages; i++){
-			UserKernel.physPages.add(pageTable[i].ppn);
-		}
-		UserKernel.physLock.release();
+		unloadPages();
 		//close all open files in this process, then close out this process
 		for(int i = 0; i < 16; i++){
 			if(fileDescrTable[i] != null){
@@ -513,6 +548,54 @@ public class UserProcess {
 		coff.close();
 	}
 
+	/**
+	 * Give back every physical page mapped by this process, and unmap it.
+	 */
+	private void unloadPages(){
+		int[] ppns = new int[pageTable.length];
+		int count = 0;
+		for(int i = 0; i < pageTable.length; i++){
+			if(pageTable[i].valid){
+				ppns[count++] = pageTable[i].ppn;
+				pageTable[i].valid = false;
+			}
+		}
+		UserKernel.releasePages(ppns, count);
+	}
+
+	/**
+	 * Give this process its own copy of a copy-on-write page, so that it can
+	 * be written. The page must be valid.
+	 * 
+	 * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if
+	 * it is read-only or there is no memory for the copy.
+	 */
+	private boolean makeWritable(int vpn){
+		TranslationEntry tEnt = pageTable[vpn];
+		if(!tEnt.readOnly){
+			return true;
+		}
+		if(copyOnWrite == null || !copyOnWrite[vpn]){
+			return false;
+		}
+		int ppn = UserKernel.allocatePage();
+		if(ppn == -1){
+			Lib.debug(dbgProcess, "No memory to copy page " + vpn + "!!");
+			return false;
+		}
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		byte[] contents = new byte[pageSize];
+		memory.read(tEnt.ppn * pageSize, contents, 0, pageSize);
+		memory.write(ppn * pageSize, contents, 0, pageSize);
+		Machine.processor().invalidateInstructionCache(ppn);
+		//drop our reference to the shared copy
+		UserKernel.releasePage(tEnt.ppn);
+		tEnt.ppn = ppn;
+		tEnt.readOnly = false;
+		copyOnWrite[vpn] = false;
+		return true;
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
@@ -646,6 +729,8 @@ public class UserProcess {
 		//if valid file name and an available slot in descriptor table, open
 		//file and create OpenFile object. This returns null if file couldn't
 		//be opened
+		//the file is about to change, so running it again must reload it
+		UserKernel.forgetExecutable(fname);
 		OpenFile currFile = ThreadedKernel.fileSystem.open(fname, true);	
 		if(currFile == null){
 			Lib.debug(dbgProcess, "Unable to create file");
@@ -686,6 +771,8 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "All file descriptors currently in use");
 			return -1;
 		}
+		//an open file can be written, so running it again must reload it
+		UserKernel.forgetExecutable(fname);
 		OpenFile currFile = ThreadedKernel.fileSystem.open(fname, false);
 		if(currFile == null){
 			Lib.debug(dbgProcess, "Unable to create file");
@@ -715,65 +802,23 @@ public class UserProcess {
 			return -1;
 		}
 		//if size is negative or extends address space, return -1
-		if(size < 0 || size > Machine.processor().getMemory().length){
+		if(size < 0 || size > pageTable.length * pageSize){
 			Lib.debug(dbgProcess, "Size to read cannot be negative or extend beyond address space!!");
 			return -1;
 		}
-		if(buf < 0 || buf > Machine.processor().getMemory().length){
+		if(buf < 0 || buf > pageTable.length * pageSize){
 			Lib.debug(dbgProcess, "Invalid buffer!!");
 			return -1;
 		}
 
-		//initialize buffer to pass data between file and user memory
-		byte[] pageBuf = new byte[pageSize];
-		int remainder = size;
-		//variable to keep track of total number of bytes read
-		int bytesRead = 0;
-		//variable to keep track of bytes recently read
-		int justRead = 0;
-		while(remainder > pageSize){
-			//call read on OpenFile
-			justRead = currFile.read(pageBuf, 0, pageSize);
-			//if justRead is -1, file failed to read
-			if(justRead == -1){
-				Lib.debug(dbgProcess, "Failed to read file!!");
-				return -1;
-			}
-			//if justRead = 0, we're possibly in the beginning of
-			//an infinite loop and should return
-			if(justRead == 0){
-				return bytesRead;
-			}
-			
-			//write to virtual memory
-			int offset = writeVirtualMemory(buf, pageBuf, 0, justRead);
-			//check that all bytes were written successfully
-			if(justRead != offset){
-				//System.out.println("Amount of bytes written doesn't match amount of bytes read!!");
-				Lib.debug(dbgProcess, "Not a match!! Amount of bytes written is " +offset);
-				Lib.debug(dbgProcess, "; Amount of bytes read is " + justRead);
-				return -1;
-			}
-			//increment remainder, bytesRead, and buf
-			buf = buf + offset;
-			bytesRead = bytesRead + offset;
-			remainder = remainder - offset;
-		}
-		//outside while loop, there's less than pageSize bytes left to read
-		justRead = currFile.read(pageBuf, 0, remainder);
-		if(justRead == -1){
-			Lib.debug(dbgProcess, "Failed to read file!!");
+		//the whole buffer must be mapped and writable before anything is
+		//read, so that a bad buffer doesn't consume data from the file
+		if(!isBufferMapped(buf, size, true)){
+			Lib.debug(dbgProcess, "Buffer is invalid or read-only!!");
 			return -1;
 		}
-		//write to virtual memory
-		int offset = writeVirtualMemory(buf, pageBuf, 0, justRead);
-		if(justRead != offset){
-			//System.out.println("Amount of bytes written doesn't match amount of bytes read!!");
-			Lib.debug(dbgProcess, "Not a match!! Amount of bytes written: " + offset);
-			Lib.debug(dbgProcess, "Amount of bytes read: " + justRead);
-			return -1;
-		}
-		return (bytesRead + offset);
+		//read straight from the file into the buffer's physical pages
+		return transferFile(currFile, buf, size, true);
 	}
 
 	/**
@@ -794,68 +839,250 @@ public class UserProcess {
 			return -1;
 		}
 		//if size is negative or extends address space, return -1
-		if(size < 0 || size > Machine.processor().getMemory().length){
+		if(size < 0 || size > pageTable.length * pageSize){
 			Lib.debug(dbgProcess, "Size to write can't be negative or extend beyond address space!!");
 			return -1;
 		}
-		if(buf < 0 || buf > Machine.processor().getMemory().length){
+		if(buf < 0 || buf > pageTable.length * pageSize){
 			Lib.debug(dbgProcess, "Invalid buffer!!");
 			return -1;
 		}
-		//initialize buffer to pass data between file and user memory
-		byte[] pageBuf = new byte[pageSize];
-		
-		int remainder = size;
-		//variable to keep track of total number of bytes written
-		int bytesWritten = 0;
-		//variable to keep track of bytes recently written by calls to 
-		//currFile.write()
-		int justWritten = 0;
-		
-		//Write up to pageSize bytes at a time until 'size' bytes have
-		//been written	
-		while(remainder > pageSize){
-			//transfer data from this process's virtual mem
-			//to all of pageBuf array
-			justWritten = readVirtualMemory(buf, pageBuf);
-			//variable to keep track of offset
-			int offset = currFile.write(pageBuf, 0, justWritten); 
-			//justWritten should be the same as offset if all bytes
-			//were successfully written
-			if(justWritten != offset){
-				Lib.debug(dbgProcess, "Not all bytes were written!!");
-				return -1;
-			}
-			//if offset is -1, failed to write to file
-			if(offset == -1){
-				Lib.debug(dbgProcess, "Failed to write to file!!");
+		if(!isBufferMapped(buf, size, false)){
+			Lib.debug(dbgProcess, "Buffer is invalid!!");
+			return -1;
+		}
+		//write straight from the buffer's physical pages to the file
+		int bytesWritten = transferFile(currFile, buf, size, false);
+		forgetWrittenFile(currFile);
+		return bytesWritten;
+	}
+
+	/**
+	 * Handle the readv(int fd, struct iovec *iov, int iovcnt) system call
+	 */
+	private int handleReadv(int fd, int iov, int iovcnt){
+		if(fd == 1 || fd < 0 || fd > 15 || fileDescrTable[fd] == null){
+			Lib.debug(dbgProcess, "(Readv) Invalid file descriptor!!");
+			return -1;
+		}
+		int[] vectors = readIOVectors(iov, iovcnt, true);
+		if(vectors == null){
+			return -1;
+		}
+		//fill the buffers in order, stopping early at the end of the file
+		int bytesRead = 0;
+		for(int i = 0; i < iovcnt; i++){
+			int length = vectors[2*i + 1];
+			int justRead = transferFile(fileDescrTable[fd], vectors[2*i], length, true);
+			if(justRead == -1){
 				return -1;
 			}
-			//Adding offset = 0 case to avoid possible infinite loop
-			if(offset == 0){
-				//no bytes were written
-				return bytesWritten;
+			bytesRead = bytesRead + justRead;
+			if(justRead < length){
+				break;
 			}
-			//increment buf, bytesWritten, and remainder
-			buf = buf + offset;
-			bytesWritten = bytesWritten + offset;
-			remainder = remainder - offset;
-		}
-		//if we're outside of the loop, there's less than pageSize bytes
-		//left to write
-		justWritten = readVirtualMemory(buf, pageBuf, 0, remainder);
-		int offset = currFile.write(pageBuf, 0, justWritten);
-		//as in while loop, check that bytes were successfully written
-		if(justWritten != offset){
-			Lib.debug(dbgProcess, "Not all bytes were written!!");
+		}
+		return bytesRead;
+	}
+
+	/**
+	 * Handle the writev(int fd, struct iovec *iov, int iovcnt) system call
+	 */
+	private int handleWritev(int fd, int iov, int iovcnt){
+		if(fd < 1 || fd > 15 || fileDescrTable[fd] == null){
+			Lib.debug(dbgProcess, "(Writev) Invalid file descriptor!!");
 			return -1;
 		}
-		if(offset == -1){
-			Lib.debug(dbgProcess, "Failed to write to file!!");
+		int[] vectors = readIOVectors(iov, iovcnt, false);
+		if(vectors == null){
 			return -1;
 		}
-		return (bytesWritten + offset);
-	
+		int bytesWritten = 0;
+		for(int i = 0; i < iovcnt; i++){
+			if(transferFile(fileDescrTable[fd], vectors[2*i], vectors[2*i + 1], false) == -1){
+				bytesWritten = -1;
+				break;
+			}
+			bytesWritten = bytesWritten + vectors[2*i + 1];
+		}
+		//earlier buffers may have been written even if a later one failed
+		forgetWrittenFile(fileDescrTable[fd]);
+		return bytesWritten;
+	}
+
+	/**
+	 * Drop the cached pages and image of a disk file that has just been
+	 * written, so that executing it again loads what was written. An exec
+	 * of the file may have cached it again since it was opened.
+	 */
+	private void forgetWrittenFile(OpenFile file){
+		//streams such as the console belong to no file system
+		if(file.getFileSystem() != null){
+			UserKernel.forgetExecutable(file.getName());
+		}
+	}
+
+	/**
+	 * Read an array of <i>count</i> <tt>struct iovec { void *base; int
+	 * length; }</tt> from user memory, and check that every buffer it
+	 * describes is mapped (and writable if <i>writable</i>).
+	 *
+	 * @return the bases and lengths, alternating, or <tt>null</tt> if the
+	 * array or any of its buffers is invalid, or the total length overflows.
+	 */
+	private int[] readIOVectors(int iov, int count, boolean writable){
+		if(count < 0 || count > maxIOVectors){
+			Lib.debug(dbgProcess, "Invalid number of I/O vectors!!");
+			return null;
+		}
+		byte[] entries = new byte[count * 8];
+		if(readVirtualMemory(iov, entries) != entries.length){
+			Lib.debug(dbgProcess, "Invalid I/O vector array!!");
+			return null;
+		}
+		int[] vectors = new int[count * 2];
+		long total = 0;
+		for(int i = 0; i < vectors.length; i++){
+			vectors[i] = Lib.bytesToInt(entries, i * 4);
+		}
+		for(int i = 0; i < count; i++){
+			total = total + vectors[2*i + 1];
+			if(vectors[2*i + 1] < 0 || total > Integer.MAX_VALUE
+					|| !isBufferMapped(vectors[2*i], vectors[2*i + 1], writable)){
+				Lib.debug(dbgProcess, "Invalid I/O vector " + i + "!!");
+				return null;
+			}
+		}
+		return vectors;
+	}
+
+	/**
+	 * Tests whether every page of the buffer at <i>vaddr</i> is mapped in
+	 * this process's page table, and writable if <i>writable</i> is
+	 * <tt>true</tt>.
+	 */
+	protected boolean isBufferMapped(int vaddr, int length, boolean writable){
+		if(vaddr < 0 || length < 0 || vaddr + length < 0){
+			return false;
+		}
+		if(length == 0){
+			return true;
+		}
+		int firstPage = Processor.pageFromAddress(vaddr);
+		int lastPage = Processor.pageFromAddress(vaddr + length - 1);
+		if(lastPage >= pageTable.length){
+			return false;
+		}
+		for(int vpn = firstPage; vpn <= lastPage; vpn++){
+			if(!pageTable[vpn].valid || (writable && pageTable[vpn].readOnly
+					&& (copyOnWrite == null || !copyOnWrite[vpn]))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Move <i>length</i> bytes between an open file and this process's
+	 * virtual memory at <i>vaddr</i>, without staging them in a kernel
+	 * buffer. The buffer is split into segments of pages that are contiguous
+	 * in physical memory, and each segment is read from or written to the
+	 * file directly in physical memory with a single file operation. The
+	 * pages of a segment are pinned with <tt>pinPage()</tt> while the file
+	 * uses them. The buffer must already have been checked with
+	 * <tt>isBufferMapped()</tt>.
+	 *
+	 * <p>
+	 * Reading stops early only when the file has no more data. Writing fails
+	 * if the file takes fewer bytes than it was given.
+	 *
+	 * @param toMemory <tt>true</tt> to read from the file into memory,
+	 * <tt>false</tt> to write memory to the file.
+	 * @return the number of bytes transferred, or -1 on failure.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length, boolean toMemory){
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		int transferred = 0;
+		while(transferred < length){
+			int firstPage = Processor.pageFromAddress(vaddr + transferred);
+			int pageOffset = Processor.offsetFromAddress(vaddr + transferred);
+			//shared pages are copied before they are read into
+			if(toMemory && !makeWritable(firstPage)){
+				Lib.debug(dbgProcess, "No memory to copy buffer page!!");
+				return -1;
+			}
+			pinPage(firstPage);
+			int paddr = pageTable[firstPage].ppn * pageSize + pageOffset;
+			//extend the segment over following pages while they are also
+			//resident and next to each other in physical memory
+			int lastPage = firstPage;
+			int amount = Math.min(length - transferred, pageSize - pageOffset);
+			while(transferred + amount < length && pageTable[lastPage + 1].valid
+					&& !(toMemory && pageTable[lastPage + 1].readOnly)
+					&& pageTable[lastPage + 1].ppn == pageTable[lastPage].ppn + 1){
+				pinPage(lastPage + 1);
+				//pinning may have waited for another process and the page
+				//may have moved in the meantime
+				if(pageTable[lastPage + 1].ppn != pageTable[lastPage].ppn + 1){
+					unpinPage(lastPage + 1);
+					break;
+				}
+				lastPage++;
+				amount = amount + Math.min(length - transferred - amount, pageSize);
+			}
+			for(int vpn = firstPage; vpn <= lastPage; vpn++){
+				pageTable[vpn].used = true;
+			}
+			int justMoved;
+			if(toMemory){
+				justMoved = memory.readFile(file, paddr, amount);
+				if(justMoved > 0){
+					for(int vpn = firstPage; vpn <= lastPage; vpn++){
+						pageTable[vpn].dirty = true;
+						Machine.processor().invalidateInstructionCache(pageTable[vpn].ppn);
+					}
+				}
+			}
+			else{
+				justMoved = memory.writeFile(file, paddr, amount);
+			}
+			for(int vpn = firstPage; vpn <= lastPage; vpn++){
+				unpinPage(vpn);
+			}
+			if(toMemory){
+				if(justMoved == -1){
+					Lib.debug(dbgProcess, "Failed to read file!!");
+					return -1;
+				}
+				//a stream may return fewer bytes than asked for; only
+				//stop once it has nothing left
+				if(justMoved == 0){
+					return transferred;
+				}
+			}
+			else if(justMoved != amount){
+				Lib.debug(dbgProcess, "Not all bytes were written!!");
+				return -1;
+			}
+			transferred = transferred + justMoved;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Make sure page <i>vpn</i> of this process is in physical memory and
+	 * keep it there until a matching <tt>unpinPage()</tt>, so that the kernel
+	 * can use its physical address. Every page of a <tt>UserProcess</tt> is
+	 * always in memory, so this does nothing.
+	 */
+	protected void pinPage(int vpn){
+	}
+
+	/**
+	 * Allow a page pinned by <tt>pinPage()</tt> to leave physical memory
+	 * again.
+	 */
+	protected void unpinPage(int vpn){
 	}
 
 	/**
@@ -903,6 +1130,7 @@ public class UserProcess {
 		}
 		//remove the file from the fileSystem
 		//remove() returns false if unable to remove
+		UserKernel.forgetExecutable(fName);
 		if(ThreadedKernel.fileSystem.remove(fName)){
 			return 0;
 		}
@@ -914,7 +1142,7 @@ public class UserProcess {
 	 */
 	private int handleExec(int vaddr, int argc, int argv){
 		//check if vaddr is negative
-		if(vaddr < 0 || vaddr > Machine.processor().getMemory().length){
+		if(vaddr < 0 || vaddr > pageTable.length * pageSize){
 			Lib.debug(dbgProcess, "Invalid address during exec()");
 			return -1;
 		}
@@ -1026,7 +1254,10 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14;
+
+	/** The most I/O vectors accepted by <tt>readv()</tt> and <tt>writev()</tt>. */
+	private static final int maxIOVectors = 16;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1080,6 +1311,16 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -1111,6 +1352,10 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -1139,6 +1384,17 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionReadOnly:
+			//a write to a shared copy-on-write page gets a private copy,
+			//and the write is then retried
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if(vpn < pageTable.length && pageTable[vpn].valid && makeWritable(vpn)){
+				break;
+			}
+			Lib.debug(dbgProcess, "Write to read-only page " + vpn);
+			handleExit(-22);
+			break;
+
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
 					+ Processor.exceptionNames[cause]);
@@ -1159,6 +1415,15 @@ public class UserProcess {
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = 8;
 
+	/** The name of the executable file being run. */
+	protected String executableName;
+
+	/**
+	 * Pages mapped read-only that are private copies of a writable section
+	 * until the process writes to them.
+	 */
+	private boolean[] copyOnWrite;
+
 	/** The thread that executes the user-level program. */
         protected UThread thread;
     
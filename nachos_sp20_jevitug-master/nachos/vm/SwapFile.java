@@ -0,0 +1,193 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * A file that holds pages evicted from physical memory. The file is divided
+ * into page-sized slots, and grows as more slots are needed; a bitmap
+ * records which slots are in use.
+ *
+ * <p>
+ * Pages are not written as they are evicted. Instead each one is copied into
+ * a batch buffer and given the next slot of a run of free, contiguous slots,
+ * and the whole run is written with a single file operation once it is full.
+ * A page read back before its batch is written is copied out of the buffer.
+ *
+ * <p>
+ * A slot keeps its contents after it is read, so a page that is evicted
+ * again without being modified can be dropped instead of written; only
+ * <tt>free()</tt> gives the slot up.
+ *
+ * <p>
+ * A swap file is not synchronized; <tt>VMKernel</tt> only uses it while
+ * holding <tt>VMKernel.vmLock</tt>.
+ */
+public class SwapFile {
+	/**
+	 * Create an empty swap file, replacing any file with the same name.
+	 *
+	 * @param name the name of the file.
+	 * @param batchPages the number of pages to write at a time.
+	 */
+	public SwapFile(String name, int batchPages) {
+		Lib.assertTrue(batchPages > 0);
+
+		this.name = name;
+		this.batchPages = batchPages;
+
+		file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null, "could not create swap file " + name);
+
+		batch = new byte[batchPages * pageSize];
+	}
+
+	/**
+	 * Save a physical page in a free slot. The page may be reused as soon as
+	 * this returns, although its contents might only reach the file when the
+	 * current batch is full.
+	 *
+	 * @param ppn the physical page to save.
+	 * @return the slot the page was given.
+	 */
+	public int write(int ppn) {
+		if (runStart == -1)
+			runStart = allocateRun();
+
+		int slot = runStart + runLength;
+
+		Machine.processor().getPhysicalMemory().read(ppn * pageSize, batch,
+				runLength * pageSize, pageSize);
+		runLength++;
+
+		if (runLength == batchPages)
+			flush();
+
+		return slot;
+	}
+
+	/**
+	 * Copy a slot into a physical page. The slot stays in use.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the physical page to fill.
+	 */
+	public void read(int slot, int ppn) {
+		Lib.assertTrue(used.get(slot));
+
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+
+		if (runStart != -1 && slot >= runStart && slot < runStart + runLength) {
+			memory.write(ppn * pageSize, batch, (slot - runStart) * pageSize,
+					pageSize);
+		}
+		else {
+			memory.strictReadFile(file, slot * pageSize, ppn * pageSize,
+					pageSize);
+			Machine.countSwapReads(1);
+		}
+
+		Machine.processor().invalidateInstructionCache(ppn);
+	}
+
+	/**
+	 * Give up a slot, so that it can be reused.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void free(int slot) {
+		Lib.assertTrue(used.get(slot));
+
+		used.clear(slot);
+	}
+
+	/**
+	 * Write the pages waiting in the batch buffer to the file, and release
+	 * the slots of the current run that were not used.
+	 */
+	public void flush() {
+		if (runStart == -1)
+			return;
+
+		if (runLength > 0) {
+			Lib.debug(dbgVM, "writing swap slots " + runStart + " to "
+					+ (runStart + runLength - 1));
+
+			int length = runLength * pageSize;
+			Lib.assertTrue(file.write(runStart * pageSize, batch, 0, length) == length,
+					"swap file write failed");
+			Machine.countSwapWrites(runLength);
+		}
+
+		used.clear(runStart + runLength, runStart + batchPages);
+
+		runStart = -1;
+		runLength = 0;
+	}
+
+	/**
+	 * Close and delete the swap file. Pages still in the batch buffer are
+	 * discarded.
+	 */
+	public void close() {
+		file.close();
+		ThreadedKernel.fileSystem.remove(name);
+	}
+
+	/**
+	 * Return the number of slots the file has grown to.
+	 *
+	 * @return the number of slots, used or not.
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Find the first run of <tt>batchPages</tt> free slots, growing the file
+	 * if there is none, and mark it in use.
+	 *
+	 * @return the first slot of the run.
+	 */
+	private int allocateRun() {
+		int start = used.nextClearBit(0);
+		while (true) {
+			int next = used.nextSetBit(start);
+			if (next == -1 || next - start >= batchPages)
+				break;
+
+			start = used.nextClearBit(next);
+		}
+
+		used.set(start, start + batchPages);
+		numSlots = Math.max(numSlots, start + batchPages);
+
+		return start;
+	}
+
+	private String name;
+
+	private OpenFile file;
+
+	private int batchPages;
+
+	/** The slots in use, including those reserved for the current run. */
+	private BitSet used = new BitSet();
+
+	private int numSlots = 0;
+
+	/** Pages waiting to be written to the current run. */
+	private byte[] batch;
+
+	/** The first slot of the current run, or -1 if there is none. */
+	private int runStart = -1;
+
+	/** The number of slots of the current run handed out so far. */
+	private int runLength = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -7,6 +7,14 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical pages are handed out as processes touch their virtual pages. The
+ * kernel keeps an inverted page table recording which process and virtual
+ * page each physical page holds, and when no page is free it picks a victim
+ * with the clock (second-chance) algorithm, using the <tt>used</tt> bits the
+ * processor sets on every access. Dirty victims are written to a
+ * <tt>SwapFile</tt>.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -21,6 +29,16 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		frames = new Frame[Machine.processor().getNumPhysPages()];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = new Frame();
+
+		vmLock = new Lock();
+		frameUnpinned = new Condition(vmLock);
+
+		swapFile = new SwapFile(Config.getString("VMKernel.swapFile",
+				"nachos.swp"), Config.getInteger("VMKernel.swapBatchPages", 4));
 	}
 
 	/**
@@ -41,11 +59,203 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		swapFile.close();
+
 		super.terminate();
 	}
 
+	/**
+	 * Give a physical page to the specified virtual page of a process. Takes a
+	 * free page if there is one, and otherwise evicts the page chosen by the
+	 * clock algorithm. The caller must hold <tt>vmLock</tt>, and must fill the
+	 * page and map it; it is pinned until then.
+	 *
+	 * @param process the process the page is for.
+	 * @param vpn the virtual page the page will hold.
+	 * @return the physical page number.
+	 */
+	static int allocateFrame(VMProcess process, int vpn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		physLock.acquire();
+		int ppn = physPages.allocate();
+		physLock.release();
+
+		if (ppn == -1) {
+			ppn = chooseVictim();
+			Frame victim = frames[ppn];
+			victim.owner.evict(victim.vpn, ppn);
+		}
+
+		frames[ppn].owner = process;
+		frames[ppn].vpn = vpn;
+		frames[ppn].pinCount = 1;
+
+		return ppn;
+	}
+
+	/**
+	 * Return a physical page to the free list, after its process has unmapped
+	 * it. The caller must hold <tt>vmLock</tt>.
+	 *
+	 * @param ppn the physical page to free.
+	 */
+	static void freeFrame(int ppn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+		Lib.assertTrue(frames[ppn].pinCount == 0);
+
+		frames[ppn].owner = null;
+
+		physLock.acquire();
+		physPages.free(ppn);
+		physLock.release();
+
+		frameUnpinned.wake();
+	}
+
+	/**
+	 * Keep a physical page from being evicted until a matching call to
+	 * <tt>unpinFrame()</tt>. The caller must hold <tt>vmLock</tt>.
+	 *
+	 * @param ppn the physical page to pin.
+	 */
+	static void pinFrame(int ppn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		frames[ppn].pinCount++;
+	}
+
+	/**
+	 * Allow a pinned physical page to be evicted again. The caller must hold
+	 * <tt>vmLock</tt>.
+	 *
+	 * @param ppn the physical page to unpin.
+	 */
+	static void unpinFrame(int ppn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+		Lib.assertTrue(frames[ppn].pinCount > 0);
+
+		if (--frames[ppn].pinCount == 0)
+			frameUnpinned.wake();
+	}
+
+	/**
+	 * Choose a physical page to evict with the clock algorithm. The hand
+	 * sweeps the inverted page table, skipping pinned pages and giving every
+	 * recently used page a second chance by clearing its <tt>used</tt> bit. If
+	 * every page is pinned, wait for one to be unpinned.
+	 *
+	 * @return the physical page to evict.
+	 */
+	private static int chooseVictim() {
+		while (true) {
+			// the TLB may hold used bits that the page tables don't have yet
+			VMProcess.syncTLB(true);
+
+			// two turns are enough to find a page unless all are pinned
+			for (int i = 0; i < 2 * frames.length; i++) {
+				int ppn = clockHand;
+				clockHand = (clockHand + 1) % frames.length;
+
+				Frame frame = frames[ppn];
+				if (frame.owner == null || frame.pinCount > 0)
+					continue;
+
+				TranslationEntry entry = frame.owner.getEntry(frame.vpn);
+				if (entry.used) {
+					entry.used = false;
+					continue;
+				}
+
+				return ppn;
+			}
+
+			Lib.debug(dbgVM, "all physical pages are pinned, waiting");
+			frameUnpinned.sleep();
+
+			physLock.acquire();
+			int free = physPages.allocate();
+			physLock.release();
+
+			if (free != -1)
+				return free;
+		}
+	}
+
+	/**
+	 * Save a physical page in a free slot of the swap file. The caller must
+	 * hold <tt>vmLock</tt>.
+	 *
+	 * @param ppn the physical page to save.
+	 * @return the swap slot given to it.
+	 */
+	static int swapOut(int ppn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		return swapFile.write(ppn);
+	}
+
+	/**
+	 * Read a slot of the swap file into a physical page. The slot keeps its
+	 * copy of the page until it is freed. The caller must hold
+	 * <tt>vmLock</tt>.
+	 *
+	 * @param slot the swap slot to read.
+	 * @param ppn the physical page to fill.
+	 */
+	static void swapIn(int slot, int ppn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		swapFile.read(slot, ppn);
+	}
+
+	/**
+	 * Free a slot of the swap file. The caller must hold <tt>vmLock</tt>.
+	 *
+	 * @param slot the swap slot to free.
+	 */
+	static void freeSwapSlot(int slot) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		swapFile.free(slot);
+	}
+
+	/**
+	 * An entry of the inverted page table: the process and virtual page held
+	 * by a physical page.
+	 */
+	private static class Frame {
+		/** The process using this page, or <tt>null</tt> if it is free. */
+		VMProcess owner = null;
+
+		/** The virtual page of <tt>owner</tt> held in this page. */
+		int vpn;
+
+		/** The number of reasons this page may not be evicted right now. */
+		int pinCount = 0;
+	}
+
+	/**
+	 * Protects the inverted page table, every <tt>VMProcess</tt>'s page
+	 * table, the TLB, and the swap file.
+	 */
+	static Lock vmLock;
+
+	/** Signalled when a physical page is unpinned or freed. */
+	private static Condition frameUnpinned;
+
+	/** The inverted page table, indexed by physical page number. */
+	private static Frame[] frames;
+
+	/** The next physical page the clock algorithm will look at. */
+	private static int clockHand = 0;
+
+	private static SwapFile swapFile;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
+	private static final int pageSize = Processor.pageSize;
+
 	private static final char dbgVM = 'v';
 }
@@ -14,6 +14,11 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		boolean intStatus = Machine.interrupt().disable();
+		asid = nextASID;
+		nextASID = (nextASID + 1) % numASIDs;
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -27,26 +32,260 @@ public class VMProcess extends UserProcess {
 	/**
 	 * Restore the state of this process after a context switch. Called by
 	 * <tt>UThread.restoreState()</tt>.
+	 * 
+	 * <p>
+	 * With a TLB, this process's translations are tagged with its ASID, so
+	 * the TLB is not flushed; only entries left behind by an earlier process
+	 * that was given the same ASID are invalidated, after their used and dirty
+	 * bits are copied back to that process's page table.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		Processor processor = Machine.processor();
+
+		if (!processor.hasTLB()) {
+			super.restoreState();
+			return;
+		}
+
+		if (asidOwners[asid] != this) {
+			VMProcess previous = asidOwners[asid];
+
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry entry = processor.readTLBEntry(i);
+				if (entry.valid && entry.asid == asid) {
+					if (previous != null)
+						copyBits(entry, previous.pageTable[entry.vpn]);
+
+					entry.valid = false;
+					processor.writeTLBEntry(i, entry);
+				}
+			}
+
+			asidOwners[asid] = this;
+		}
+
+		processor.setASID(asid);
+	}
+
+	/**
+	 * Transfer data from this process's virtual memory to the specified array.
+	 * Pages that are not in physical memory are faulted in first.
+	 * 
+	 * @param vaddr the first byte of virtual memory to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to transfer from virtual memory to the
+	 * array.
+	 * @return the number of bytes successfully transferred.
+	 */
+	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		if (data == null || offset < 0 || length < 0
+				|| offset + length > data.length)
+			return 0;
+
+		return copyVirtualMemory(vaddr, data, offset, length, false);
+	}
+
+	/**
+	 * Transfer data from the specified array to this process's virtual memory.
+	 * Pages that are not in physical memory are faulted in first.
+	 * 
+	 * @param vaddr the first byte of virtual memory to write.
+	 * @param data the array containing the data to transfer.
+	 * @param offset the first byte to transfer from the array.
+	 * @param length the number of bytes to transfer from the array to virtual
+	 * memory.
+	 * @return the number of bytes successfully transferred.
+	 */
+	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		if (data == null || offset < 0 || length < 0
+				|| offset + length > data.length)
+			return 0;
+
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy between virtual memory and an array one page at a time, pinning
+	 * each page while it is copied. Stops at the end of the address space, or
+	 * at a read-only page when writing.
+	 * 
+	 * @param toMemory <tt>true</tt> to copy from the array to virtual memory.
+	 * @return the number of bytes copied.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean toMemory) {
+		Processor processor = Machine.processor();
+		PhysicalMemory memory = processor.getPhysicalMemory();
+
+		if (vaddr < 0)
+			return 0;
+
+		int copied = 0;
+		while (copied < length) {
+			int vpn = Processor.pageFromAddress(vaddr + copied);
+			if (vpn >= pageTable.length
+					|| (toMemory && pageTable[vpn].readOnly))
+				break;
+
+			int pageOffset = Processor.offsetFromAddress(vaddr + copied);
+			int amount = Math.min(length - copied, pageSize - pageOffset);
+
+			pinPage(vpn);
+
+			TranslationEntry entry = pageTable[vpn];
+			int paddr = entry.ppn * pageSize + pageOffset;
+			entry.used = true;
+
+			if (toMemory) {
+				memory.write(paddr, data, offset + copied, amount);
+				entry.dirty = true;
+				processor.invalidateInstructionCache(entry.ppn);
+			}
+			else {
+				memory.read(paddr, data, offset + copied, amount);
+			}
+
+			unpinPage(vpn);
+
+			copied += amount;
+		}
+
+		return copied;
+	}
+
+	/**
+	 * Tests whether every page of the buffer at <i>vaddr</i> is part of this
+	 * process's address space, and writable if <i>writable</i> is
+	 * <tt>true</tt>. The pages need not be in physical memory.
+	 */
+	protected boolean isBufferMapped(int vaddr, int length, boolean writable) {
+		if (vaddr < 0 || length < 0 || vaddr + length < 0)
+			return false;
+
+		if (length == 0)
+			return true;
+
+		int firstPage = Processor.pageFromAddress(vaddr);
+		int lastPage = Processor.pageFromAddress(vaddr + length - 1);
+		if (lastPage >= pageTable.length)
+			return false;
+
+		if (writable) {
+			for (int vpn = firstPage; vpn <= lastPage; vpn++) {
+				if (pageTable[vpn].readOnly)
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fault in the specified page if it is not in physical memory, and keep
+	 * it there until a matching <tt>unpinPage()</tt>.
+	 */
+	protected void pinPage(int vpn) {
+		VMKernel.vmLock.acquire();
+
+		if (pageTable[vpn].valid)
+			VMKernel.pinFrame(pageTable[vpn].ppn);
+		else
+			faultIn(vpn);
+
+		VMKernel.vmLock.release();
+	}
+
+	/**
+	 * Allow a page pinned by <tt>pinPage()</tt> to be evicted again.
+	 */
+	protected void unpinPage(int vpn) {
+		VMKernel.vmLock.acquire();
+
+		VMKernel.unpinFrame(pageTable[vpn].ppn);
+
+		VMKernel.vmLock.release();
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. No physical memory is allocated; every page starts out
+	 * invalid and is loaded by <tt>faultIn()</tt> when it is first used, so a
+	 * program may be larger than physical memory.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		pageTable = new TranslationEntry[numPages];
+		pageSections = new CoffSection[numPages];
+		swapSlots = new int[numPages];
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+			pageTable[vpn].asid = asid;
+			swapSlots[vpn] = -1;
+		}
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+
+				pageSections[vpn] = section;
+				pageTable[vpn].readOnly = section.isReadOnly();
+			}
+		}
+
+		return true;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		Processor processor = Machine.processor();
+
+		VMKernel.vmLock.acquire();
+
+		if (processor.hasTLB() && asidOwners[asid] == this) {
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry entry = processor.readTLBEntry(i);
+				if (entry.valid && entry.asid == asid) {
+					entry.valid = false;
+					processor.writeTLBEntry(i, entry);
+				}
+			}
+
+			asidOwners[asid] = null;
+		}
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (pageTable[vpn].valid) {
+				pageTable[vpn].valid = false;
+				VMKernel.freeFrame(pageTable[vpn].ppn);
+			}
+
+			if (swapSlots[vpn] != -1) {
+				VMKernel.freeSwapSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		VMKernel.vmLock.release();
+
+		for (int i = 0; i < fileDescrTable.length; i++) {
+			if (fileDescrTable[i] != null) {
+				fileDescrTable[i].close();
+				fileDescrTable[i] = null;
+			}
+		}
+
+		coff.close();
 	}
 
 	/**
@@ -60,12 +299,247 @@ public class VMProcess extends UserProcess {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionPageFault:
+		case Processor.exceptionTLBMiss:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (vpn >= pageTable.length) {
+				super.handleException(cause);
+				break;
+			}
+
+			handlePageFault(vpn);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Make the specified page accessible to the processor: fault it in if it
+	 * is not in physical memory and, with a TLB, load its translation into
+	 * the TLB.
+	 * 
+	 * @param vpn the virtual page the processor could not translate.
+	 */
+	private void handlePageFault(int vpn) {
+		Processor processor = Machine.processor();
+
+		// a TLB miss on a page that is in memory is refilled without waiting
+		// for vmLock, which may be held across a swap or COFF read; pages
+		// only change between valid and invalid while nothing else can run
+		if (processor.hasTLB()) {
+			boolean intStatus = Machine.interrupt().disable();
+			boolean refilled = pageTable[vpn].valid;
+			if (refilled)
+				loadTLBEntry(vpn);
+			Machine.interrupt().restore(intStatus);
+
+			if (refilled)
+				return;
+		}
+
+		VMKernel.vmLock.acquire();
+
+		if (!pageTable[vpn].valid) {
+			int ppn = faultIn(vpn);
+			VMKernel.unpinFrame(ppn);
+		}
+
+		if (processor.hasTLB())
+			loadTLBEntry(vpn);
+
+		VMKernel.vmLock.release();
+	}
+
+	/**
+	 * Bring the specified page into physical memory. Its contents come from
+	 * the swap file if it was ever evicted dirty, from the executable if it is
+	 * part of a COFF section, and are otherwise zero. The time this takes,
+	 * including any eviction, is recorded in the fault service statistics.
+	 * The caller must hold <tt>VMKernel.vmLock</tt>; the page is left
+	 * pinned.
+	 * 
+	 * @param vpn the virtual page to load.
+	 * @return the physical page it was loaded into.
+	 */
+	private int faultIn(int vpn) {
+		Processor processor = Machine.processor();
+		TranslationEntry entry = pageTable[vpn];
+		long startTime = Machine.timer().getTime();
+
+		int ppn = VMKernel.allocateFrame(this, vpn);
+
+		if (swapSlots[vpn] != -1) {
+			// the slot keeps its copy, so the page stays clean until written
+			VMKernel.swapIn(swapSlots[vpn], ppn);
+		}
+		else if (pageSections[vpn] != null) {
+			CoffSection section = pageSections[vpn];
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+		}
+		else {
+			processor.getPhysicalMemory().fill(ppn * pageSize, pageSize,
+					(byte) 0);
+			processor.invalidateInstructionCache(ppn);
+		}
+
+		Machine.recordFaultService(Machine.timer().getTime() - startTime);
+
+		Lib.debug(dbgVM, "process " + pid + " page " + vpn + " -> " + ppn);
+
+		entry.ppn = ppn;
+		entry.used = true;
+		entry.dirty = false;
+		entry.valid = true;
+
+		return ppn;
+	}
+
+	/**
+	 * Remove the specified page from physical memory so that its physical
+	 * page can be reused. Called by <tt>VMKernel</tt> with
+	 * <tt>VMKernel.vmLock</tt> held. A dirty page is written to a new swap
+	 * slot; a clean page can be loaded again from where it came from.
+	 * 
+	 * @param vpn the virtual page to evict.
+	 * @param ppn the physical page holding it.
+	 */
+	void evict(int vpn, int ppn) {
+		Processor processor = Machine.processor();
+		TranslationEntry entry = pageTable[vpn];
+
+		Lib.assertTrue(entry.valid && entry.ppn == ppn);
+
+		if (processor.hasTLB() && asidOwners[asid] == this) {
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry tlbEntry = processor.readTLBEntry(i);
+				if (tlbEntry.valid && tlbEntry.asid == asid
+						&& tlbEntry.vpn == vpn) {
+					copyBits(tlbEntry, entry);
+					tlbEntry.valid = false;
+					processor.writeTLBEntry(i, tlbEntry);
+				}
+			}
+		}
+
+		entry.valid = false;
+
+		// a clean page matches its swap slot, its COFF page, or zeroes
+		if (entry.dirty) {
+			if (swapSlots[vpn] != -1)
+				VMKernel.freeSwapSlot(swapSlots[vpn]);
+
+			swapSlots[vpn] = VMKernel.swapOut(ppn);
+		}
+
+		entry.used = false;
+		entry.dirty = false;
+	}
+
+	/**
+	 * Return this process's page table entry for the specified page.
+	 */
+	TranslationEntry getEntry(int vpn) {
+		return pageTable[vpn];
+	}
+
+	/**
+	 * Load the translation for the specified page into the TLB set that may
+	 * hold it. An invalid entry of the set is used if there is one; otherwise
+	 * the set's entries are replaced in turn.
+	 * 
+	 * @param vpn the virtual page, which must be in physical memory.
+	 */
+	private void loadTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+
+		int associativity = processor.getTLBAssociativity();
+		int first = processor.getTLBSet(vpn) * associativity;
+
+		int victim = -1;
+		for (int i = first; i < first + associativity; i++) {
+			if (!processor.readTLBEntry(i).valid) {
+				victim = i;
+				break;
+			}
+		}
+
+		if (victim == -1) {
+			victim = first + nextTLBVictim % associativity;
+			nextTLBVictim++;
+
+			TranslationEntry replaced = processor.readTLBEntry(victim);
+			if (asidOwners[replaced.asid] != null)
+				copyBits(replaced, asidOwners[replaced.asid].pageTable[replaced.vpn]);
+		}
+
+		TranslationEntry entry = new TranslationEntry(pageTable[vpn]);
+		entry.asid = asid;
+		processor.writeTLBEntry(victim, entry);
+	}
+
+	/**
+	 * Copy the used and dirty bits of every valid TLB entry back to the page
+	 * table of the process it belongs to. Called by <tt>VMKernel</tt> with
+	 * <tt>VMKernel.vmLock</tt> held, before it looks at used bits.
+	 * 
+	 * @param clearUsed <tt>true</tt> to also clear the used bits in the TLB,
+	 * so that the processor sets them again on the next access.
+	 */
+	static void syncTLB(boolean clearUsed) {
+		Processor processor = Machine.processor();
+
+		if (!processor.hasTLB())
+			return;
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (!entry.valid || asidOwners[entry.asid] == null)
+				continue;
+
+			copyBits(entry, asidOwners[entry.asid].pageTable[entry.vpn]);
+
+			if (clearUsed && entry.used) {
+				entry.used = false;
+				processor.writeTLBEntry(i, entry);
+			}
+		}
+	}
+
+	/**
+	 * Add the used and dirty bits of a TLB entry to a page table entry.
+	 */
+	private static void copyBits(TranslationEntry from, TranslationEntry to) {
+		to.used |= from.used;
+		to.dirty |= from.dirty;
+	}
+
+	/** The address space identifier used to tag this process's TLB entries. */
+	protected int asid;
+
+	/** The number of distinct ASIDs handed out before they are reused. */
+	private static final int numASIDs = 64;
+
+	private static int nextASID = 0;
+
+	/** The process whose translations each ASID currently tags. */
+	private static VMProcess[] asidOwners = new VMProcess[numASIDs];
+
+	/** The next entry to replace within a full TLB set. */
+	private static int nextTLBVictim = 0;
+
+	/**
+	 * The COFF section holding each page, or <tt>null</tt> for the stack and
+	 * argument pages.
+	 */
+	private CoffSection[] pageSections;
+
+	/** The swap slot holding each page, or -1 if it is not in swap. */
+	private int[] swapSlots;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';